@@ -41,7 +41,10 @@ import android.widget.Toast;
 import com.github.orangegangsters.lollipin.lib.PinCompatActivity;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import fr.bmartel.smartcard.passwordwallet.application.PasswordApplication;
 import fr.bmartel.smartcard.passwordwallet.db.PasswordReaderDbHelper;
@@ -52,6 +55,7 @@ import fr.bmartel.smartcard.passwordwallet.inter.IFragmentOptions;
 import fr.bmartel.smartcard.passwordwallet.model.Password;
 import fr.bmartel.smartcard.passwordwallet.uicc.ApduResponse;
 import fr.bmartel.smartcard.passwordwallet.uicc.UiccUtils;
+import fr.bmartel.smartcard.passwordwallet.utils.HexUtils;
 import fr.bmartel.smartcard.passwordwallet.utils.MenuUtils;
 
 /**
@@ -63,6 +67,16 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
 
     private final static String TAG = BaseActivity.class.getSimpleName();
 
+    /**
+     * directory digest of the UICC when the titles were cached.
+     */
+    private final static String PREF_DIRECTORY_DIGEST = "directory_digest";
+
+    /**
+     * titles cached from the last UICC listing.
+     */
+    private final static String PREF_DIRECTORY = "directory";
+
     protected Toolbar toolbar = null;
 
     protected DrawerLayout mDrawer = null;
@@ -146,7 +160,12 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
     protected void onCorrectPinCode() {
         nvDrawer.getMenu().findItem(R.id.close_session).setVisible(true);
         nvDrawer.getMenu().findItem(R.id.change_pincode).setVisible(true);
-        updateMode();
+        nvDrawer.getMenu().findItem(R.id.card_memory).setVisible(true);
+        if (mApplication.isModeRefreshed()) {
+            showMode();
+        } else {
+            updateMode();
+        }
         initModel();
         runOnUiThread(new Runnable() {
             @Override
@@ -161,6 +180,13 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
      */
     protected void updateMode() {
         mApplication.refreshMode();
+        showMode();
+    }
+
+    /**
+     * show the current mode icon.
+     */
+    private void showMode() {
         switch (mApplication.mode) {
             case PasswordApplication.MODE_APP_STORAGE:
                 runOnUiThread(new Runnable() {
@@ -191,7 +217,7 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
             case PasswordApplication.MODE_APP_STORAGE:
                 SQLiteDatabase db = mDbHelper.getReadableDatabase();
 
-                String sortOrder = PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_TITLE + " DESC";
+                String sortOrder = PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_TITLE + " COLLATE NOCASE ASC";
                 Cursor cursor = db.query(PasswordReaderDbHelper.PasswordEntry.TABLE_NAME, null, null, null, null, null, sortOrder);
 
                 mPasswordList = new ArrayList<>();
@@ -203,9 +229,17 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
                 cursor.close();
                 break;
             case PasswordApplication.MODE_SIM_STORAGE:
+                //the list is only retrieved if the directory changed since it was cached
+                byte[] digest = mApplication.getUicc().getDirectoryDigest();
+                List<Password> cachedList = getCachedDirectory(digest);
+                if (cachedList != null) {
+                    mPasswordList = cachedList;
+                    break;
+                }
                 List<Password> passwordList = mApplication.getUicc().getPasswordList();
                 if (passwordList != null) {
                     mPasswordList = passwordList;
+                    saveDirectory(digest, passwordList);
                 } else {
                     Toast.makeText(this, "failed to retrieve password on UICC", Toast.LENGTH_SHORT).show();
                 }
@@ -215,6 +249,50 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
         }
     }
 
+    /**
+     * Get the titles cached from the last listing if the UICC directory didn't change since.
+     *
+     * @param digest current directory digest
+     * @return cached password list or null if the directory changed
+     */
+    private List<Password> getCachedDirectory(byte[] digest) {
+        if (digest == null || !HexUtils.byteArrayToHexString(digest).equals(mSharedPref.getString(PREF_DIRECTORY_DIGEST, null))) {
+            return null;
+        }
+        Set<String> titles = mSharedPref.getStringSet(PREF_DIRECTORY, null);
+        if (titles == null) {
+            return null;
+        }
+        //the cached set is unordered, titles are restored in the UICC listing order
+        Set<String> sortedTitles = new TreeSet<>(UiccUtils.TITLE_ORDER);
+        sortedTitles.addAll(titles);
+        List<Password> passwordList = new ArrayList<>();
+        for (String title : sortedTitles) {
+            passwordList.add(new Password(title, null, null));
+        }
+        return passwordList;
+    }
+
+    /**
+     * Cache the titles of a listing with the directory digest read before the listing.
+     *
+     * @param digest       directory digest
+     * @param passwordList password list
+     */
+    private void saveDirectory(byte[] digest, List<Password> passwordList) {
+        if (digest == null) {
+            return;
+        }
+        Set<String> titles = new HashSet<>();
+        for (Password password : passwordList) {
+            titles.add(password.getTitle());
+        }
+        mSharedPref.edit()
+                .putString(PREF_DIRECTORY_DIGEST, HexUtils.byteArrayToHexString(digest))
+                .putStringSet(PREF_DIRECTORY, titles)
+                .apply();
+    }
+
     /**
      * Set toolbar title in initialization
      */
@@ -311,18 +389,7 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
                 ApduResponse result = mApplication.getUicc().encrypt(password.getBytes());
 
                 if (result.isSuccessful()) {
-                    SQLiteDatabase db = mDbHelper.getWritableDatabase();
-
-                    ContentValues values = new ContentValues();
-                    values.put(PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_TITLE, title);
-                    values.put(PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_USERNAME, username);
-                    values.put(PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_PASSWORD, result.getData());
-
-                    db.insert(PasswordReaderDbHelper.PasswordEntry.TABLE_NAME, null, values);
-
-                    Password passwordObj = new Password(title, username, result.getData());
-                    mPasswordList.add(passwordObj);
-
+                    insertPassword(title, username, result.getData());
                     return result.getData();
                 }
                 break;
@@ -332,7 +399,7 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
                     Log.e(TAG, "write operation failed");
                 } else {
                     Password passwordObj = new Password(title, null, null);
-                    mPasswordList.add(passwordObj);
+                    addSorted(passwordObj);
                     return result.getData();
                 }
                 break;
@@ -340,17 +407,119 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
         return null;
     }
 
+    /**
+     * Insert an encrypted password entry in local storage.
+     *
+     * @param title    password title
+     * @param username username
+     * @param password encrypted password value
+     * @return true if the entry was inserted
+     */
+    private boolean insertPassword(String title, String username, byte[] password) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_TITLE, title);
+        values.put(PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_USERNAME, username);
+        values.put(PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_PASSWORD, password);
+
+        if (db.insert(PasswordReaderDbHelper.PasswordEntry.TABLE_NAME, null, values) == -1) {
+            return false;
+        }
+        Password passwordObj = new Password(title, username, password);
+        addSorted(passwordObj);
+        return true;
+    }
+
+    /**
+     * Insert a password in the list at its position in the UICC title order.
+     *
+     * @param password password entry
+     */
+    private void addSorted(Password password) {
+        int low = 0;
+        int high = mPasswordList.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (UiccUtils.TITLE_ORDER.compare(mPasswordList.get(middle).getTitle(), password.getTitle()) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        mPasswordList.add(low, password);
+    }
+
+    /**
+     * Move a renamed password to its position in the UICC title order.
+     *
+     * @param title new password title
+     */
+    private void moveToSortedPosition(String title) {
+        for (int i = 0; i < mPasswordList.size(); i++) {
+            if (mPasswordList.get(i).getTitle().equals(title)) {
+                addSorted(mPasswordList.remove(i));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Insert encrypted password entries in local storage in a single transaction, nothing is inserted if one of them
+     * fails.
+     *
+     * @param passwords password entries with encrypted password values
+     * @return true if all entries were inserted
+     */
+    private boolean insertPasswords(List<Password> passwords) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            for (Password password : passwords) {
+                if (!insertPassword(password.getTitle(), password.getUsername(), password.getPassword())) {
+                    return false;
+                }
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete password entries from local storage in a single transaction.
+     *
+     * @param passwords password entries
+     */
+    private void deleteLocalPasswords(List<Password> passwords) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        String whereClause = PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_TITLE + "=?";
+
+        db.beginTransaction();
+        try {
+            for (Password password : passwords) {
+                db.delete(PasswordReaderDbHelper.PasswordEntry.TABLE_NAME, whereClause, new String[]{password.getTitle()});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * Update a password entry.
      *
-     * @param formerTitle last password title
-     * @param newTitle    new password title
-     * @param username    updated username
-     * @param password    updated password value
+     * @param former   former password entry
+     * @param newTitle new password title
+     * @param username updated username
+     * @param password updated password value
      * @return APDU data result
      */
     @Override
-    public byte[] saveExistingPassword(String formerTitle, String newTitle, String username, String password) {
+    public byte[] saveExistingPassword(Password former, String newTitle, String username, String password) {
+        String formerTitle = former.getTitle();
         switch (mApplication.mode) {
             case PasswordApplication.MODE_APP_STORAGE:
                 ApduResponse result = mApplication.getUicc().encrypt(password.getBytes());
@@ -369,11 +538,15 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
                             values,
                             PasswordReaderDbHelper.PasswordEntry.COLUMN_NAME_TITLE + "=?", whereArgs);
 
+                    if (!newTitle.equals(formerTitle)) {
+                        moveToSortedPosition(newTitle);
+                    }
                     return result.getData();
                 }
                 break;
             case PasswordApplication.MODE_SIM_STORAGE:
-                result = mApplication.getUicc().editPassword(formerTitle, newTitle, username, password);
+                //only changed fields are sent
+                result = mApplication.getUicc().editPassword(former, newTitle, username, password);
                 if (result == null) {
                     Log.e(TAG, "write operation failed");
                 } else {
@@ -383,6 +556,9 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
                             break;
                         }
                     }
+                    if (!newTitle.equals(formerTitle)) {
+                        moveToSortedPosition(newTitle);
+                    }
                     return result.getData();
                 }
                 break;
@@ -424,74 +600,91 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
                 if (!res.isSuccessful()) {
                     Log.e(TAG, "set mode failed");
                 } else {
+                    byte formerMode = mApplication.mode;
                     mApplication.setMode(mode);
 
+                    boolean migrated = true;
                     final List<Password> tempList = new ArrayList<>();
-                    //transition between modes
+                    //transition between modes, entries are only removed from one side once stored on the other
                     switch (mApplication.mode) {
                         case PasswordApplication.MODE_APP_STORAGE:
-                            for (Password password : mPasswordList) {
-                                tempList.add(new Password(password.getTitle(), password.getUsername(), password.getPassword()));
+                            //entries are exported already encrypted with the card key
+                            List<Password> exported = mApplication.getUicc().exportPasswords();
+                            progress.setProgress(50);
+                            if (exported == null) {
+                                migrated = false;
+                                break;
                             }
                             mPasswordList.clear();
-                            for (int i = 0; i < tempList.size(); i++) {
-
-                                ApduResponse result = mApplication.getUicc().getPassword(tempList.get(i).getTitle());
-
-                                if (result.isSuccessful()) {
-                                    Password realPassword = UiccUtils.parsePassword(tempList.get(i).getTitle(), result.getData());
-                                    //add password in database
-                                    saveNewPassword(realPassword.getTitle(), realPassword.getUsername(), new String(realPassword.getPassword()));
-                                    // delete on UICC
-                                    mApplication.getUicc().deletePassword(realPassword.getTitle());
-                                    final int finalI = i;
-                                    runOnUiThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            progress.setProgress((finalI * 100) / tempList.size());
-                                        }
-                                    });
-                                }
+                            if (!insertPasswords(exported)) {
+                                Log.e(TAG, "write operation failed in local storage");
+                                migrated = false;
+                                break;
+                            }
+                            ApduResponse deleted = mApplication.getUicc().deletePasswords();
+                            if (!deleted.isSuccessful()) {
+                                //some entries may be deleted already : the complete local copy is kept
+                                Log.e(TAG, "delete passwords failed : " + Integer.toHexString(deleted.getStatus() & 0xFFFF));
+                                runOnUiThread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        Toast.makeText(BaseActivity.this, "failed to delete passwords on UICC", Toast.LENGTH_SHORT).show();
+                                    }
+                                });
                             }
                             progress.setProgress(100);
-
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    toolbar.getMenu().findItem(R.id.button_mode).setIcon(R.drawable.ic_memory);
-                                }
-                            });
                             break;
                         case PasswordApplication.MODE_SIM_STORAGE:
                             for (Password password : mPasswordList) {
                                 tempList.add(new Password(password.getTitle(), password.getUsername(), password.getPassword()));
                             }
-                            mPasswordList.clear();
+                            //encrypted passwords are imported as is
+                            short[] status = mApplication.getUicc().importPasswords(tempList);
+                            progress.setProgress(50);
+                            List<Password> imported = new ArrayList<>();
                             for (int i = 0; i < tempList.size(); i++) {
-                                //add password in UICC
-                                saveNewPassword(tempList.get(i).getTitle(), tempList.get(i).getUsername(), decrypt(tempList.get(i).getPassword()));
-                                final int finalI = i;
-                                runOnUiThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        progress.setProgress((finalI * 100) / tempList.size());
+                                if (status[i] == (short) 0x9000) {
+                                    imported.add(tempList.get(i));
+                                } else {
+                                    Log.e(TAG, "write operation failed for " + tempList.get(i).getTitle() + " : " +
+                                            Integer.toHexString(status[i] & 0xFFFF));
+                                }
+                            }
+                            if (imported.size() != tempList.size()) {
+                                //local storage stays the only copy : entries already imported are removed from UICC
+                                for (Password password : imported) {
+                                    if (!mApplication.getUicc().deletePassword(password.getTitle()).isSuccessful()) {
+                                        Log.e(TAG, "delete operation failed for " + password.getTitle());
                                     }
-                                });
+                                }
+                                migrated = false;
+                                break;
+                            }
+                            mPasswordList.clear();
+                            for (Password password : imported) {
+                                addSorted(new Password(password.getTitle(), null, null));
                             }
-                            // drop all data from database
-                            dropAll();
+                            //drop imported entries from database
+                            deleteLocalPasswords(imported);
                             progress.setProgress(100);
-
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    toolbar.getMenu().findItem(R.id.button_mode).setIcon(R.drawable.ic_sim_card);
-                                }
-                            });
                             break;
                         default:
                             break;
                     }
+                    if (!migrated) {
+                        Log.e(TAG, "mode transition failed, back to mode " + formerMode);
+                        if (!mApplication.getUicc().setMode(formerMode).isSuccessful()) {
+                            Log.e(TAG, "set mode failed");
+                        }
+                        mApplication.setMode(formerMode);
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Toast.makeText(BaseActivity.this, "failed to move passwords, storage mode unchanged", Toast.LENGTH_SHORT).show();
+                            }
+                        });
+                    }
+                    showMode();
                     initModel();
                 }
                 listener.onComplete();
@@ -525,14 +718,6 @@ public abstract class BaseActivity extends PinCompatActivity implements IBaseAct
         return null;
     }
 
-    /**
-     * remove all passwords from local db.
-     */
-    private void dropAll() {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.execSQL("delete from " + PasswordReaderDbHelper.PasswordEntry.TABLE_NAME);
-    }
-
     /**
      * Delete a password entry.
      *
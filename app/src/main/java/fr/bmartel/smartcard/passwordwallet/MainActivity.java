@@ -73,6 +73,7 @@ public class MainActivity extends BaseActivity {
      * unlock activity.
      */
     private void unlock() {
+        mApplication.refreshStatus();
         if (!mApplication.isPinCodeChecked()) {
             Intent intent = new Intent(MainActivity.this, CustomPinActivity.class);
             if (mApplication.isCardSecured()) {
@@ -93,6 +94,7 @@ public class MainActivity extends BaseActivity {
 
         switch (requestCode) {
             case REQUEST_UNLOCK_PIN:
+                mApplication.refreshStatus();
                 if (mApplication.isPinCodeChecked()) {
                     onCorrectPinCode();
                 } else {
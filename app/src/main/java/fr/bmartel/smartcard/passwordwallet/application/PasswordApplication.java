@@ -35,6 +35,7 @@ import fr.bmartel.smartcard.passwordwallet.CustomPinActivity;
 import fr.bmartel.smartcard.passwordwallet.R;
 import fr.bmartel.smartcard.passwordwallet.inter.IServiceConnection;
 import fr.bmartel.smartcard.passwordwallet.uicc.ApduResponse;
+import fr.bmartel.smartcard.passwordwallet.uicc.SessionStatus;
 import fr.bmartel.smartcard.passwordwallet.uicc.Uicc;
 
 /**
@@ -82,6 +83,11 @@ public class PasswordApplication extends Application implements SEService.CallBa
 
     private boolean connected = false;
 
+    /**
+     * session status of the last refresh, null if the applet doesn't support the status command.
+     */
+    private SessionStatus mStatus;
+
     private Handler mHandler;
 
     @Override
@@ -197,12 +203,39 @@ public class PasswordApplication extends Application implements SEService.CallBa
         this.mode = mode;
     }
 
+    /**
+     * Read card state, pin code state and mode from UICC with a single command. The following calls to
+     * isCardSecured and isPinCodeChecked use this status.
+     */
+    public void refreshStatus() {
+        mStatus = mUicc.getStatus();
+        if (mStatus != null && mStatus.isPinValidated()) {
+            mode = mStatus.getMode();
+        }
+    }
+
+    /**
+     * Check if the mode has been read with the session status.
+     *
+     * @return true if the mode is up to date
+     */
+    public boolean isModeRefreshed() {
+        return mStatus != null && mStatus.isPinValidated();
+    }
+
+    public SessionStatus getStatus() {
+        return mStatus;
+    }
+
     /**
      * Check if card is secured from UICC (eg if the pin code has been already set before).
      *
      * @return
      */
     public boolean isCardSecured() {
+        if (mStatus != null) {
+            return mStatus.getCardState() == CARD_SECURED;
+        }
         ApduResponse cardStateRes = mUicc.getCardState();
         if (cardStateRes.getData().length != 0) {
             return (cardStateRes.getData()[0] == CARD_SECURED);
@@ -211,6 +244,9 @@ public class PasswordApplication extends Application implements SEService.CallBa
     }
 
     public boolean isPinCodeChecked() {
+        if (mStatus != null) {
+            return mStatus.isPinValidated();
+        }
         return mUicc.getPinCodeState().isSuccessful();
     }
 
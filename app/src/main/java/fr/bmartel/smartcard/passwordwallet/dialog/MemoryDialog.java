@@ -0,0 +1,55 @@
+/*********************************************************************************
+ * This file is part of SIM Password Wallet                                      *
+ * <p/>                                                                          *
+ * Copyright (C) 2017  Bertrand Martel                                           *
+ * <p/>                                                                          *
+ * SIM Password Wallet is free software: you can redistribute it and/or modify   *
+ * it under the terms of the GNU General Public License as published by          *
+ * the Free Software Foundation, either version 3 of the License, or             *
+ * (at your option) any later version.                                           *
+ * <p/>                                                                          *
+ * SIM Password Wallet is distributed in the hope that it will be useful,        *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of                *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                 *
+ * GNU General Public License for more details.                                  *
+ * <p/>                                                                          *
+ * You should have received a copy of the GNU General Public License             *
+ * along with SIM Password Wallet.  If not, see <http://www.gnu.org/licenses/>.  *
+ */
+package fr.bmartel.smartcard.passwordwallet.dialog;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+
+import fr.bmartel.smartcard.passwordwallet.R;
+import fr.bmartel.smartcard.passwordwallet.uicc.MemoryStatus;
+
+/**
+ * Card memory dialog.
+ *
+ * @author Bertrand Martel
+ */
+public class MemoryDialog extends AlertDialog {
+
+    public MemoryDialog(Context context, MemoryStatus memory) {
+        super(context);
+
+        if (memory != null) {
+            setMessage(context.getResources().getString(R.string.memory_description,
+                    memory.getEntryCount(),
+                    memory.getFreeEntries(),
+                    memory.getUsedBytes(),
+                    memory.getFreeBytes(),
+                    memory.getLargestRecord(),
+                    memory.getPersistent(),
+                    memory.getTransientReset(),
+                    memory.getTransientDeselect()));
+        } else {
+            setMessage(context.getResources().getString(R.string.memory_unavailable));
+        }
+        setTitle(R.string.memory_title);
+        setButton(DialogInterface.BUTTON_POSITIVE, context.getResources().getString(R.string.dialog_ok),
+                (OnClickListener) null);
+    }
+}
@@ -35,9 +35,6 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 
-import java.util.Collections;
-import java.util.Comparator;
-
 import fr.bmartel.smartcard.passwordwallet.BaseActivity;
 import fr.bmartel.smartcard.passwordwallet.R;
 import fr.bmartel.smartcard.passwordwallet.adapter.PasswordAdapter;
@@ -46,7 +43,6 @@ import fr.bmartel.smartcard.passwordwallet.dialog.ModeDialog;
 import fr.bmartel.smartcard.passwordwallet.inter.IDeletionListener;
 import fr.bmartel.smartcard.passwordwallet.inter.IFragmentOptions;
 import fr.bmartel.smartcard.passwordwallet.inter.IViewHolderClickListener;
-import fr.bmartel.smartcard.passwordwallet.model.Password;
 
 /**
  * Password Fragment.
@@ -87,16 +83,6 @@ public class PasswordFragment extends ListFragmentAbstr implements IFragmentOpti
 
         mPasswordList = ((BaseActivity) getActivity()).getPasswordList();
 
-        //sort by topic
-        if (mPasswordList.size() > 0) {
-            Collections.sort(mPasswordList, new Comparator<Password>() {
-                @Override
-                public int compare(final Password object1, final Password object2) {
-                    return object1.getTitle().compareTo(object2.getTitle());
-                }
-            });
-        }
-
         mPasswordAdapter = new PasswordAdapter(getRootActivity(), mPasswordList, getActivity(), new IViewHolderClickListener() {
             @Override
             public void onClick(View view) {
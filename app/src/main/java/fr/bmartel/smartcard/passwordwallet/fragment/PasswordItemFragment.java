@@ -60,6 +60,11 @@ public class PasswordItemFragment extends MainFragmentAbstr implements IFragment
 
     private int mPasswordIndex = -1;
 
+    /**
+     * entry as retrieved before edition, used to send only the updated fields.
+     */
+    private Password mFormerPassword;
+
     public PasswordItemFragment() {
     }
 
@@ -127,6 +132,8 @@ public class PasswordItemFragment extends MainFragmentAbstr implements IFragment
             }
             mPasswordTitleEt.setText(password.getTitle());
             mPasswordUsernameEt.setText(password.getUsername());
+            mFormerPassword = new Password(password.getTitle(), password.getUsername(),
+                    (app.mode == PasswordApplication.MODE_APP_STORAGE) ? null : password.getPassword());
 
             if (app.mode == PasswordApplication.MODE_APP_STORAGE) {
                 mEncryptedPasswordTv.setText(HexUtils.byteArrayToHexString(password.getPassword()));
@@ -204,12 +211,16 @@ public class PasswordItemFragment extends MainFragmentAbstr implements IFragment
                         Toast.makeText(getActivity(), "operation failed", Toast.LENGTH_SHORT).show();
                     }
                 } else {
-                    String formerTitle = getRootActivity().getPasswordList().get(mPasswordIndex).getTitle();
-                    getRootActivity().getPasswordList().get(mPasswordIndex).setTitle(title);
-                    getRootActivity().getPasswordList().get(mPasswordIndex).setUsername(username);
-                    byte[] res = getRootActivity().saveExistingPassword(formerTitle, title, username, password);
+                    //the entry is moved in the list if its title changes
+                    Password edited = getRootActivity().getPasswordList().get(mPasswordIndex);
+                    String formerTitle = edited.getTitle();
+                    Password former = (mFormerPassword != null && mFormerPassword.getTitle().equals(formerTitle)) ?
+                            mFormerPassword : new Password(formerTitle, null, null);
+                    edited.setTitle(title);
+                    edited.setUsername(username);
+                    byte[] res = getRootActivity().saveExistingPassword(former, title, username, password);
                     if (res != null) {
-                        getRootActivity().getPasswordList().get(mPasswordIndex).setPassword(res);
+                        edited.setPassword(res);
                         Toast.makeText(getActivity(), "password " + title + " has been saved", Toast.LENGTH_SHORT).show();
                         getActivity().onBackPressed();
                     } else {
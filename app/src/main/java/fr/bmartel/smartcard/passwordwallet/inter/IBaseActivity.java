@@ -78,13 +78,13 @@ public interface IBaseActivity extends IDialog {
     /**
      * called when a password should be updated.
      *
-     * @param formerTitle former password title
-     * @param newTitle    new password title
-     * @param username    new username value
-     * @param password    new password value
+     * @param former   former password entry as retrieved (username and password may be null if unknown)
+     * @param newTitle new password title
+     * @param username new username value
+     * @param password new password value
      * @return data payload
      */
-    byte[] saveExistingPassword(String formerTitle, String newTitle, String username, String password);
+    byte[] saveExistingPassword(Password former, String newTitle, String username, String password);
 
     /**
      * Delete password entry.
@@ -115,14 +115,24 @@ public class CommandApdu {
         return mLe;
     }
 
+    /**
+     * Check if Lc or Le doesn't fit in a short APDU.
+     *
+     * @return true if APDU must be sent with extended length
+     */
+    public boolean isExtended() {
+        return mLc > 255 || (mLeUsed && mLe > 256);
+    }
+
     public byte[] toBytes() {
+        boolean extended = isExtended();
         int length = 4; // CLA, INS, P1, P2
         if (mData.length != 0) {
-            length += 1; // LC
+            length += extended ? 3 : 1; // LC
             length += mData.length; // DATA
         }
         if (mLeUsed) {
-            length += 1; // LE
+            length += extended ? ((mData.length != 0) ? 2 : 3) : 1; // LE
         }
 
         byte[] apdu = new byte[length];
@@ -137,12 +147,22 @@ public class CommandApdu {
         apdu[index] = (byte) mP2;
         index++;
         if (mData.length != 0) {
+            if (extended) {
+                apdu[index++] = 0x00;
+                apdu[index++] = (byte) (mLc >> 8);
+            }
             apdu[index] = (byte) mLc;
             index++;
             System.arraycopy(mData, 0, apdu, index, mData.length);
             index += mData.length;
         }
         if (mLeUsed) {
+            if (extended) {
+                if (mData.length == 0) {
+                    apdu[index++] = 0x00;
+                }
+                apdu[index++] = (byte) (mLe >> 8);
+            }
             apdu[index] += (byte) mLe; // LE
         }
 
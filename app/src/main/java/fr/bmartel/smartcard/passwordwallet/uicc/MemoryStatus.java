@@ -0,0 +1,131 @@
+/*********************************************************************************
+ * This file is part of SIM Password Wallet                                      *
+ * <p/>                                                                          *
+ * Copyright (C) 2017  Bertrand Martel                                           *
+ * <p/>                                                                          *
+ * SIM Password Wallet is free software: you can redistribute it and/or modify   *
+ * it under the terms of the GNU General Public License as published by          *
+ * the Free Software Foundation, either version 3 of the License, or             *
+ * (at your option) any later version.                                           *
+ * <p/>                                                                          *
+ * SIM Password Wallet is distributed in the hope that it will be useful,        *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of                *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                 *
+ * GNU General Public License for more details.                                  *
+ * <p/>                                                                          *
+ * You should have received a copy of the GNU General Public License             *
+ * along with SIM Password Wallet.  If not, see <http://www.gnu.org/licenses/>.  *
+ */
+package fr.bmartel.smartcard.passwordwallet.uicc;
+
+/**
+ * Card memory data model : record storage, entry pool and memory available for the applet.
+ *
+ * @author Bertrand Martel
+ */
+public class MemoryStatus {
+
+    /**
+     * record bytes used.
+     */
+    private int usedBytes;
+
+    /**
+     * record bytes free.
+     */
+    private int freeBytes;
+
+    /**
+     * number of stored entries.
+     */
+    private int entryCount;
+
+    /**
+     * number of entries in the free list.
+     */
+    private int freeEntries;
+
+    /**
+     * persistent memory available (capped to 32767 bytes).
+     */
+    private int persistent;
+
+    /**
+     * clear on reset transient memory available.
+     */
+    private int transientReset;
+
+    /**
+     * clear on deselect transient memory available.
+     */
+    private int transientDeselect;
+
+    /**
+     * largest record which can be allocated.
+     */
+    private int largestRecord;
+
+    public int getUsedBytes() {
+        return usedBytes;
+    }
+
+    public void setUsedBytes(int usedBytes) {
+        this.usedBytes = usedBytes;
+    }
+
+    public int getFreeBytes() {
+        return freeBytes;
+    }
+
+    public void setFreeBytes(int freeBytes) {
+        this.freeBytes = freeBytes;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public void setEntryCount(int entryCount) {
+        this.entryCount = entryCount;
+    }
+
+    public int getFreeEntries() {
+        return freeEntries;
+    }
+
+    public void setFreeEntries(int freeEntries) {
+        this.freeEntries = freeEntries;
+    }
+
+    public int getPersistent() {
+        return persistent;
+    }
+
+    public void setPersistent(int persistent) {
+        this.persistent = persistent;
+    }
+
+    public int getTransientReset() {
+        return transientReset;
+    }
+
+    public void setTransientReset(int transientReset) {
+        this.transientReset = transientReset;
+    }
+
+    public int getTransientDeselect() {
+        return transientDeselect;
+    }
+
+    public void setTransientDeselect(int transientDeselect) {
+        this.transientDeselect = transientDeselect;
+    }
+
+    public int getLargestRecord() {
+        return largestRecord;
+    }
+
+    public void setLargestRecord(int largestRecord) {
+        this.largestRecord = largestRecord;
+    }
+}
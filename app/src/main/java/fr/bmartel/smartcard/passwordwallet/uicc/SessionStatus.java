@@ -0,0 +1,144 @@
+/*********************************************************************************
+ * This file is part of SIM Password Wallet                                      *
+ * <p/>                                                                          *
+ * Copyright (C) 2017  Bertrand Martel                                           *
+ * <p/>                                                                          *
+ * SIM Password Wallet is free software: you can redistribute it and/or modify   *
+ * it under the terms of the GNU General Public License as published by          *
+ * the Free Software Foundation, either version 3 of the License, or             *
+ * (at your option) any later version.                                           *
+ * <p/>                                                                          *
+ * SIM Password Wallet is distributed in the hope that it will be useful,        *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of                *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                 *
+ * GNU General Public License for more details.                                  *
+ * <p/>                                                                          *
+ * You should have received a copy of the GNU General Public License             *
+ * along with SIM Password Wallet.  If not, see <http://www.gnu.org/licenses/>.  *
+ */
+package fr.bmartel.smartcard.passwordwallet.uicc;
+
+/**
+ * Session status data model : card and PIN state, capabilities and, once the PIN is validated, vault state.
+ *
+ * @author Bertrand Martel
+ */
+public class SessionStatus {
+
+    /**
+     * Global Platform card state.
+     */
+    private byte cardState;
+
+    /**
+     * PIN validated for this session.
+     */
+    private boolean pinValidated;
+
+    /**
+     * number of PIN tries remaining.
+     */
+    private int triesRemaining;
+
+    /**
+     * command set version (major in high byte, minor in low byte).
+     */
+    private int protocolVersion;
+
+    /**
+     * maximum data length per command.
+     */
+    private int maxDataSize;
+
+    /**
+     * padding done by the card cipher.
+     */
+    private boolean nativePadding;
+
+    /**
+     * working mode (0 if the PIN is not validated).
+     */
+    private byte mode;
+
+    /**
+     * number of stored entries (-1 if the PIN is not validated).
+     */
+    private int entryCount = -1;
+
+    /**
+     * number of entries which can still be added (-1 if the PIN is not validated).
+     */
+    private int freeEntries = -1;
+
+    public byte getCardState() {
+        return cardState;
+    }
+
+    public void setCardState(byte cardState) {
+        this.cardState = cardState;
+    }
+
+    public boolean isPinValidated() {
+        return pinValidated;
+    }
+
+    public void setPinValidated(boolean pinValidated) {
+        this.pinValidated = pinValidated;
+    }
+
+    public int getTriesRemaining() {
+        return triesRemaining;
+    }
+
+    public void setTriesRemaining(int triesRemaining) {
+        this.triesRemaining = triesRemaining;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public int getMaxDataSize() {
+        return maxDataSize;
+    }
+
+    public void setMaxDataSize(int maxDataSize) {
+        this.maxDataSize = maxDataSize;
+    }
+
+    public boolean isNativePadding() {
+        return nativePadding;
+    }
+
+    public void setNativePadding(boolean nativePadding) {
+        this.nativePadding = nativePadding;
+    }
+
+    public byte getMode() {
+        return mode;
+    }
+
+    public void setMode(byte mode) {
+        this.mode = mode;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public void setEntryCount(int entryCount) {
+        this.entryCount = entryCount;
+    }
+
+    public int getFreeEntries() {
+        return freeEntries;
+    }
+
+    public void setFreeEntries(int freeEntries) {
+        this.freeEntries = freeEntries;
+    }
+}
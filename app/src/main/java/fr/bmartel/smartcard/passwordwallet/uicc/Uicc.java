@@ -25,8 +25,18 @@ import org.simalliance.openmobileapi.Reader;
 import org.simalliance.openmobileapi.SEService;
 import org.simalliance.openmobileapi.Session;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import fr.bmartel.smartcard.passwordwallet.model.Password;
 import fr.bmartel.smartcard.passwordwallet.utils.HexUtils;
@@ -44,17 +54,60 @@ public class Uicc {
 
     private final static byte INS_ENCRYPT = (byte) 0x10;
     private final static byte INS_DECRYPT = (byte) 0x11;
+    private final static byte INS_ENCRYPT_ALL = (byte) 0x12;
+    private final static byte INS_DECRYPT_ALL = (byte) 0x13;
     private final static byte INS_GET_MODE = (byte) 0x40;
     private final static byte INS_SET_MODE = (byte) 0x41;
     private final static byte INS_ADD_PASSWORD = (byte) 0x30;
-    private final static byte INS_LIST_PASSWORD = (byte) 0x36;
+    private final static byte INS_ADD_PASSWORDS = (byte) 0x31;
+    private final static byte INS_LIST_CHANGES = (byte) 0x3A;
+    private final static byte INS_GET_DIGEST = (byte) 0x3B;
+    private final static byte INS_SEARCH = (byte) 0x3C;
     private final static byte INS_DELETE_PASSWORD = (byte) 0x34;
     private final static byte INS_GET_PASSWORD = (byte) 0x32;
+    private final static byte INS_GET_PASSWORDS = (byte) 0x35;
+    private final static byte INS_EXPORT_PASSWORDS = (byte) 0x37;
+    private final static byte INS_IMPORT_PASSWORDS = (byte) 0x38;
+    private final static byte INS_DELETE_PASSWORDS = (byte) 0x39;
     private final static byte INS_EDIT_PASSWORD = (byte) 0x33;
     private final static byte INS_VERIFY = (byte) 0x20;
     private final static byte INS_GET_STATE = (byte) 0x50;
     private final static byte INS_PIN_CHECK = (byte) 0x51;
+    private final static byte INS_GET_STATUS = (byte) 0x52;
+    private final static byte INS_GET_MEMORY = (byte) 0x54;
     private final static byte INS_CHANGE_REFERENCE_DATA = (byte) 0x24;
+    private final static byte INS_GET_RESPONSE = (byte) 0xC0;
+
+    private final static byte P1_MORE_BLOCKS = (byte) 0x80;
+    private final static byte P1_IGNORE_CASE = (byte) 0x01;
+
+    private final static short SW_CHANGES_NOT_AVAILABLE = (short) 0x6A88;
+
+    private final static int SHORT_MAX_DATA_SIZE = 255;
+    private final static int EXTENDED_MAX_RESPONSE_SIZE = 65536;
+
+    private final static int AES_BLOCK_SIZE = 16;
+
+    /**
+     * maximum data length per command, more than 255 if the applet supports extended length APDU.
+     */
+    private int mMaxDataSize = SHORT_MAX_DATA_SIZE;
+
+    /**
+     * true if the applet uses the card native padding (for benchmarking purpose).
+     */
+    private boolean mNativePadding;
+
+    /**
+     * handles assigned by the applet to entries indexed by title, used instead of titles to designate entries. Titles
+     * are kept in the applet order.
+     */
+    private Map<String, Integer> mHandles = new TreeMap<>(UiccUtils.TITLE_ORDER);
+
+    /**
+     * vault generation of the last listing, all zero if entries have never been listed.
+     */
+    private byte[] mGeneration = new byte[4];
 
     private SEService mService;
 
@@ -82,6 +135,31 @@ public class Uicc {
         Session session = readers[0].openSession();
 
         mChannel = session.openLogicalChannel(HexUtils.hexStringToByteArray(APPLET_ID));
+        resetDirectory();
+
+        if (mChannel != null) {
+            mMaxDataSize = Math.max(SHORT_MAX_DATA_SIZE, UiccUtils.parseMaxDataSize(mChannel.getSelectResponse()));
+            mNativePadding = UiccUtils.parseNativePadding(mChannel.getSelectResponse());
+            Log.v(TAG, "max data size : " + mMaxDataSize + ", native padding : " + mNativePadding);
+        }
+    }
+
+    /**
+     * Get maximum data length that can be sent in a single command.
+     *
+     * @return maximum data length
+     */
+    public int getMaxDataSize() {
+        return mMaxDataSize;
+    }
+
+    /**
+     * Check if the applet pads data with the card cipher or in software.
+     *
+     * @return true if padding is done natively
+     */
+    public boolean isNativePadding() {
+        return mNativePadding;
     }
 
     /**
@@ -109,10 +187,17 @@ public class Uicc {
             try {
                 byte[] respApdu;
 
-                if (data.length > 0) {
-                    respApdu = mChannel.transmit(new CommandApdu((byte) 0x90, operation, P1, P2, data).toBytes());
+                if (data.length > mMaxDataSize) {
+                    Log.e(TAG, "data length " + data.length + " exceeds " + mMaxDataSize);
+                    return new ApduResponse(new byte[]{});
+                } else if (data.length > SHORT_MAX_DATA_SIZE && isChainable(operation)) {
+                    return requestChained(data, P2, operation);
+                } else if (data.length > SHORT_MAX_DATA_SIZE) {
+                    respApdu = transmit(new CommandApdu((byte) 0x90, operation, P1, P2, data, EXTENDED_MAX_RESPONSE_SIZE).toBytes());
+                } else if (data.length > 0) {
+                    respApdu = transmit(new CommandApdu((byte) 0x90, operation, P1, P2, data).toBytes());
                 } else {
-                    respApdu = mChannel.transmit(new CommandApdu((byte) 0x90, operation, P1, P2, 0x00).toBytes());
+                    respApdu = transmit(new CommandApdu((byte) 0x90, operation, P1, P2, 0x00).toBytes());
                 }
                 return new ApduResponse(respApdu);
             } catch (Exception e) {
@@ -123,19 +208,142 @@ public class Uicc {
     }
 
     /**
-     * Get password list.
+     * Transmit a command, response data announced with 61xx is retrieved with GET RESPONSE and concatenated.
+     *
+     * @param command command APDU
+     * @return full response APDU
+     * @throws IOException
+     */
+    private byte[] transmit(byte[] command) throws IOException {
+        byte[] response = mChannel.transmit(command);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        while (response.length >= 2 && response[response.length - 2] == (byte) 0x61) {
+            data.write(response, 0, response.length - 2);
+            response = mChannel.transmit(new CommandApdu(0x00, INS_GET_RESPONSE, 0x00, 0x00, response[response.length - 1] & 0xFF).toBytes());
+        }
+        data.write(response, 0, response.length);
+        return data.toByteArray();
+    }
+
+    /**
+     * Check if an instruction accepts data split across several APDU.
+     *
+     * @param operation instruction
+     * @return true if command chaining is supported
+     */
+    private static boolean isChainable(byte operation) {
+        return operation == INS_ADD_PASSWORD || operation == INS_ADD_PASSWORDS || operation == INS_EDIT_PASSWORD ||
+                operation == INS_GET_PASSWORDS || operation == INS_IMPORT_PASSWORDS;
+    }
+
+    /**
+     * Send data split in short APDU blocks, every block but the last one is flagged with P1_MORE_BLOCKS.
+     *
+     * @param data      data payload
+     * @param P2        P2 param
+     * @param operation instruction
+     * @return APDU response object of the last block or of the first failing block
+     * @throws IOException
+     */
+    private ApduResponse requestChained(byte[] data, byte P2, byte operation) throws IOException {
+        ApduResponse response = new ApduResponse(new byte[]{});
+
+        for (int offset = 0; offset < data.length; offset += SHORT_MAX_DATA_SIZE) {
+            int length = Math.min(SHORT_MAX_DATA_SIZE, data.length - offset);
+            byte[] block = new byte[length];
+            System.arraycopy(data, offset, block, 0, length);
+            byte P1 = (offset + length < data.length) ? P1_MORE_BLOCKS : 0x00;
+
+            response = new ApduResponse(transmit(new CommandApdu((byte) 0x90, operation, P1, P2, block).toBytes()));
+            if (!response.isSuccessful()) {
+                break;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Get password list. Only the entries changed since the last listing are retrieved, the whole list is retrieved
+     * the first time or if the applet doesn't know all changes since then.
      *
      * @return
      */
     public List<Password> getPasswordList() {
-        ApduResponse result = requestSE(new byte[]{}, INS_LIST_PASSWORD);
+        ApduResponse result = requestSE(mGeneration, INS_LIST_CHANGES);
+
+        if (result.getStatus() == SW_CHANGES_NOT_AVAILABLE) {
+            resetDirectory();
+            result = requestSE(mGeneration, INS_LIST_CHANGES);
+        }
+        if (result.isSuccessful()) {
+            Map<String, Integer> changed = new LinkedHashMap<>();
+            List<Integer> deleted = new ArrayList<>();
+            byte[] generation = UiccUtils.parseChanges(result.getData(), changed, deleted);
+            if (generation != null) {
+                if (isFullListing()) {
+                    mHandles.clear();
+                }
+                //a modified entry keeps its handle, the former title is replaced
+                deleted.addAll(changed.values());
+                mHandles.values().removeAll(deleted);
+                mHandles.putAll(changed);
+                mGeneration = generation;
+
+                List<Password> passwordList = new ArrayList<>();
+                for (String title : mHandles.keySet()) {
+                    passwordList.add(new Password(title, null, null));
+                }
+                return passwordList;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the directory digest : vault generation, entry count and digest of all titles and handles. The digest
+     * doesn't change as long as no entry is added, deleted or modified.
+     *
+     * @return digest response or null if it failed
+     */
+    public byte[] getDirectoryDigest() {
+        ApduResponse result = requestSE(new byte[]{}, INS_GET_DIGEST);
 
         if (result.isSuccessful()) {
-            return UiccUtils.parsePaswordList(result.getData());
+            return result.getData();
         }
         return null;
     }
 
+    /**
+     * Search titles starting with a prefix on UICC without retrieving the whole list.
+     *
+     * @param prefix     title prefix
+     * @param ignoreCase true to ignore ASCII case
+     * @return matching titles in alphabetical order or null if it failed
+     */
+    public List<String> searchPasswords(String prefix, boolean ignoreCase) {
+        ApduResponse result = requestSE(UiccUtils.buildSearch(prefix), ignoreCase ? P1_IGNORE_CASE : 0x00,
+                (byte) 0x00, INS_SEARCH);
+
+        if (result.isSuccessful()) {
+            return new ArrayList<>(UiccUtils.parseHandles(result.getData()).keySet());
+        }
+        return null;
+    }
+
+    private boolean isFullListing() {
+        return Arrays.equals(mGeneration, new byte[4]);
+    }
+
+    /**
+     * Forget cached handles, the next listing retrieves all entries.
+     */
+    private void resetDirectory() {
+        mHandles.clear();
+        mGeneration = new byte[4];
+    }
+
     /**
      * Encrypt data on UICC.
      *
@@ -157,16 +365,121 @@ public class Uicc {
     }
 
     /**
-     * Update a password entry.
+     * Encrypt several data items on UICC, items are packed in as few commands as possible.
+     *
+     * @param items clear text data items
+     * @return encrypted items in the same order (null if an item couldn't be encrypted)
+     */
+    public List<byte[]> encryptAll(List<byte[]> items) {
+        return requestAll(items, INS_ENCRYPT_ALL);
+    }
+
+    /**
+     * Decrypt several data items on UICC, items are packed in as few commands as possible.
+     *
+     * @param items encrypted data items
+     * @return clear text items in the same order (null if an item couldn't be decrypted)
+     */
+    public List<byte[]> decryptAll(List<byte[]> items) {
+        return requestAll(items, INS_DECRYPT_ALL);
+    }
+
+    /**
+     * Send length prefixed items to an encrypt/decrypt all instruction. Both command data and response data of a
+     * command are kept under the maximum data size.
+     *
+     * @param items     data items
+     * @param operation INS_ENCRYPT_ALL or INS_DECRYPT_ALL
+     * @return result items in the same order (null if an item couldn't be processed)
+     */
+    private List<byte[]> requestAll(List<byte[]> items, byte operation) {
+        List<byte[]> results = new ArrayList<>(Collections.<byte[]>nCopies(items.size(), null));
+        int first = 0;
+
+        while (first < items.size()) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int responseLength = 0;
+            int last = first;
+            while (last < items.size()) {
+                byte[] item = items.get(last);
+                int itemResponseLength = (operation == INS_ENCRYPT_ALL) ?
+                        1 + (item.length / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE : 1 + item.length;
+                if (itemResponseLength > SHORT_MAX_DATA_SIZE + 1) {
+                    Log.e(TAG, "item " + last + " too large : " + item.length);
+                    if (last == first) {
+                        first++;
+                        last++;
+                        continue;
+                    }
+                    break;
+                }
+                if (last > first && (data.size() + 1 + item.length > mMaxDataSize ||
+                        responseLength + itemResponseLength > mMaxDataSize)) {
+                    break;
+                }
+                data.write(item.length);
+                data.write(item, 0, item.length);
+                responseLength += itemResponseLength;
+                last++;
+            }
+            if (data.size() == 0) {
+                continue;
+            }
+            ApduResponse result = requestSE(data.toByteArray(), operation);
+            if (result.isSuccessful()) {
+                byte[] res = result.getData();
+                int offset = 0;
+                for (int i = first; i < last && offset < res.length; i++) {
+                    int length = res[offset] & 0xFF;
+                    if (offset + 1 + length > res.length) {
+                        break;
+                    }
+                    results.set(i, Arrays.copyOfRange(res, offset + 1, offset + 1 + length));
+                    offset += 1 + length;
+                }
+            } else {
+                Log.e(TAG, "batch operation failed : " + Integer.toHexString(result.getStatus() & 0xFFFF));
+            }
+            first = last;
+        }
+        return results;
+    }
+
+    /**
+     * Update a password entry, fields set to null are left unchanged and not sent.
      *
      * @param formerTitle former password title
-     * @param newTitle    new password title
-     * @param username    updated username
-     * @param password    updated password value
+     * @param newTitle    new password title or null
+     * @param username    updated username or null
+     * @param password    updated password value or null
      * @return APDU response
      */
     public ApduResponse editPassword(String formerTitle, String newTitle, String username, String password) {
-        return requestSE(UiccUtils.buildEditPassword(formerTitle, newTitle, username, password), INS_EDIT_PASSWORD);
+        Integer handle = mHandles.get(formerTitle);
+        byte[] key = (handle != null) ? UiccUtils.buildHandle(handle) : UiccUtils.buildOldTitle(formerTitle);
+        ApduResponse result = requestSE(UiccUtils.buildEditPassword(key, newTitle, username, password), INS_EDIT_PASSWORD);
+
+        if (result.isSuccessful() && handle != null && newTitle != null) {
+            mHandles.remove(formerTitle);
+            mHandles.put(newTitle, handle);
+        }
+        return result;
+    }
+
+    /**
+     * Update a password entry sending only the fields which differ from the former entry.
+     *
+     * @param former   former password entry (username and clear password may be null if unknown)
+     * @param newTitle new password title
+     * @param username updated username
+     * @param password updated password value
+     * @return APDU response
+     */
+    public ApduResponse editPassword(Password former, String newTitle, String username, String password) {
+        return editPassword(former.getTitle(),
+                newTitle.equals(former.getTitle()) ? null : newTitle,
+                username.equals(former.getUsername()) ? null : username,
+                (former.getPassword() != null && password.equals(new String(former.getPassword()))) ? null : password);
     }
 
     /**
@@ -178,7 +491,98 @@ public class Uicc {
      * @return APDU response
      */
     public ApduResponse addPassword(String title, String username, String password) {
-        return requestSE(UiccUtils.buildAddPassword(title, username, password), INS_ADD_PASSWORD);
+        ApduResponse result = requestSE(UiccUtils.buildAddPassword(title, username, password), INS_ADD_PASSWORD);
+
+        if (result.isSuccessful()) {
+            List<Integer> handles = UiccUtils.parseAddedHandles(result.getData());
+            if (handles.size() == 1) {
+                mHandles.put(title, handles.get(0));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add several password entries, entries are packed in as few commands as possible.
+     *
+     * @param passwords password entries with clear text password values
+     * @return status word of each entry (0 if the entry couldn't be sent)
+     */
+    public short[] addPasswords(List<Password> passwords) {
+        return addAll(passwords, INS_ADD_PASSWORDS);
+    }
+
+    /**
+     * Import password entries with passwords already encrypted with the card key, entries are packed in as few
+     * commands as possible.
+     *
+     * @param passwords password entries with encrypted password values
+     * @return status word of each entry (0 if the entry couldn't be sent)
+     */
+    public short[] importPasswords(List<Password> passwords) {
+        return addAll(passwords, INS_IMPORT_PASSWORDS);
+    }
+
+    /**
+     * Send password entries to an add passwords or import passwords instruction.
+     *
+     * @param passwords password entries
+     * @param operation INS_ADD_PASSWORDS or INS_IMPORT_PASSWORDS
+     * @return status word of each entry (0 if the entry couldn't be sent)
+     */
+    private short[] addAll(List<Password> passwords, byte operation) {
+        short[] status = new short[passwords.size()];
+        int first = 0;
+
+        while (first < passwords.size()) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int last = first;
+            while (last < passwords.size()) {
+                Password password = passwords.get(last);
+                byte[] entry = UiccUtils.buildAddPassword(password.getTitle(), password.getUsername(), password.getPassword());
+                if (last > first && data.size() + entry.length > mMaxDataSize) {
+                    break;
+                }
+                data.write(entry, 0, entry.length);
+                last++;
+            }
+            ApduResponse result = requestSE(data.toByteArray(), operation);
+            if (!result.isSuccessful()) {
+                Log.e(TAG, "add passwords failed : " + Integer.toHexString(result.getStatus() & 0xFFFF));
+                break;
+            }
+            byte[] res = result.getData();
+            for (int i = 0; i < (last - first) && (2 * i + 1) < res.length; i++) {
+                status[first + i] = (short) (((res[2 * i] & 0xFF) << 8) + (res[2 * i + 1] & 0xFF));
+            }
+            first = last;
+        }
+        return status;
+    }
+
+    /**
+     * Export all password entries with passwords encrypted with the card key.
+     *
+     * @return password entries or null if export failed
+     */
+    public List<Password> exportPasswords() {
+        ApduResponse result = requestSE(new byte[]{}, INS_EXPORT_PASSWORDS);
+
+        if (result.isSuccessful()) {
+            return new ArrayList<>(UiccUtils.parsePasswords(result.getData()).values());
+        }
+        Log.e(TAG, "export passwords failed : " + Integer.toHexString(result.getStatus() & 0xFFFF));
+        return null;
+    }
+
+    /**
+     * Delete all password entries.
+     *
+     * @return APDU response
+     */
+    public ApduResponse deletePasswords() {
+        resetDirectory();
+        return requestSE(new byte[]{}, INS_DELETE_PASSWORDS);
     }
 
     /**
@@ -188,7 +592,48 @@ public class Uicc {
      * @return APDU response
      */
     public ApduResponse getPassword(String title) {
-        return requestSE(UiccUtils.buildGetPassword(title), INS_GET_PASSWORD);
+        return requestSE(buildKey(title), INS_GET_PASSWORD);
+    }
+
+    /**
+     * Build the TLV designating an entry : its handle if known or its title.
+     *
+     * @param title password title
+     * @return handle or title TLV
+     */
+    private byte[] buildKey(String title) {
+        Integer handle = mHandles.get(title);
+        return (handle != null) ? UiccUtils.buildHandle(handle) : UiccUtils.buildGetPassword(title);
+    }
+
+    /**
+     * Get several password entries, titles are packed in as few commands as possible.
+     *
+     * @param titles password titles
+     * @return password entries found indexed by title
+     */
+    public Map<String, Password> getPasswords(Collection<String> titles) {
+        Map<String, Password> passwords = new HashMap<>();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Iterator<String> it = titles.iterator();
+
+        while (it.hasNext() || data.size() > 0) {
+            byte[] entry = it.hasNext() ? UiccUtils.buildGetPassword(it.next()) : null;
+
+            if (entry == null || (data.size() > 0 && data.size() + entry.length > mMaxDataSize)) {
+                ApduResponse result = requestSE(data.toByteArray(), INS_GET_PASSWORDS);
+                if (!result.isSuccessful()) {
+                    Log.e(TAG, "get passwords failed : " + Integer.toHexString(result.getStatus() & 0xFFFF));
+                    break;
+                }
+                passwords.putAll(UiccUtils.parsePasswords(result.getData()));
+                data.reset();
+            }
+            if (entry != null) {
+                data.write(entry, 0, entry.length);
+            }
+        }
+        return passwords;
     }
 
     /**
@@ -198,7 +643,12 @@ public class Uicc {
      * @return APDU response
      */
     public ApduResponse deletePassword(String title) {
-        return requestSE(UiccUtils.buildDeletePassword(title), INS_DELETE_PASSWORD);
+        ApduResponse result = requestSE(buildKey(title), INS_DELETE_PASSWORD);
+
+        if (result.isSuccessful()) {
+            mHandles.remove(title);
+        }
+        return result;
     }
 
     /**
@@ -229,6 +679,39 @@ public class Uicc {
         return requestSE(new byte[]{}, INS_GET_STATE);
     }
 
+    /**
+     * Get card memory usage.
+     *
+     * @return memory status or null if the command failed
+     */
+    public MemoryStatus getMemory() {
+        ApduResponse result = requestSE(new byte[]{}, INS_GET_MEMORY);
+
+        if (result.isSuccessful()) {
+            return UiccUtils.parseMemory(result.getData());
+        }
+        return null;
+    }
+
+    /**
+     * Get the session status with a single command, capabilities are updated from the status.
+     *
+     * @return session status or null if not supported by the applet
+     */
+    public SessionStatus getStatus() {
+        ApduResponse result = requestSE(new byte[]{}, INS_GET_STATUS);
+
+        if (result.isSuccessful()) {
+            SessionStatus status = UiccUtils.parseStatus(result.getData());
+            if (status != null) {
+                mMaxDataSize = Math.max(SHORT_MAX_DATA_SIZE, status.getMaxDataSize());
+                mNativePadding = status.isNativePadding();
+            }
+            return status;
+        }
+        return null;
+    }
+
     /**
      * Check if pin code is already checked for this session.
      *
@@ -18,8 +18,14 @@
  */
 package fr.bmartel.smartcard.passwordwallet.uicc;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import fr.bmartel.smartcard.passwordwallet.model.Password;
 
@@ -39,9 +45,20 @@ public class UiccUtils {
      * @return data payload
      */
     public static byte[] buildAddPassword(String title, String username, String password) {
+        return buildAddPassword(title, username, password.getBytes());
+    }
+
+    /**
+     * Build create password entry payload.
+     *
+     * @param title      password title
+     * @param username   username
+     * @param passwordBa password value
+     * @return data payload
+     */
+    public static byte[] buildAddPassword(String title, String username, byte[] passwordBa) {
         byte[] titleBa = title.getBytes();
         byte[] usernameBa = username.getBytes();
-        byte[] passwordBa = password.getBytes();
 
         byte[] res = new byte[titleBa.length + usernameBa.length + passwordBa.length + 3 + 3];
 
@@ -71,35 +88,72 @@ public class UiccUtils {
      * @return data payload
      */
     public static byte[] buildEditPassword(String oldTitle, String title, String username, String password) {
-        byte[] oldTitleBa = oldTitle.getBytes();
-        byte[] titleBa = title.getBytes();
-        byte[] usernameBa = username.getBytes();
-        byte[] passwordBa = password.getBytes();
-
-        byte[] res = new byte[oldTitleBa.length + titleBa.length + usernameBa.length + passwordBa.length + 4 + 4];
-
-        int offset = 0;
+        return buildEditPassword(buildOldTitle(oldTitle), title, username, password);
+    }
 
-        res[offset++] = (byte) 0xF4;
-        res[offset++] = (byte) oldTitleBa.length;
-        System.arraycopy(oldTitleBa, 0, res, offset, oldTitleBa.length);
-        offset += oldTitleBa.length;
+    /**
+     * Build title prefix TLV used to search titles.
+     *
+     * @param prefix title prefix
+     * @return title TLV
+     */
+    public static byte[] buildSearch(String prefix) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        writeTLV(res, 0xF1, prefix.getBytes());
+        return res.toByteArray();
+    }
 
-        res[offset++] = (byte) 0xF1;
-        res[offset++] = (byte) titleBa.length;
-        System.arraycopy(titleBa, 0, res, offset, titleBa.length);
-        offset += titleBa.length;
+    /**
+     * Title order of the UICC directory : ASCII case insensitive, then shortest first, then byte values.
+     */
+    public final static Comparator<String> TITLE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String title1, String title2) {
+            return compareTitles(title1.getBytes(), title2.getBytes());
+        }
+    };
 
-        res[offset++] = (byte) 0xF2;
-        res[offset++] = (byte) usernameBa.length;
-        System.arraycopy(usernameBa, 0, res, offset, usernameBa.length);
-        offset += usernameBa.length;
+    /**
+     * Compare two titles the way the applet orders its entries.
+     *
+     * @param title1 first title
+     * @param title2 second title
+     * @return negative, zero or positive value if title1 is before, equal or after title2
+     */
+    public static int compareTitles(byte[] title1, byte[] title2) {
+        int length = Math.min(title1.length, title2.length);
+        for (int i = 0; i < length; i++) {
+            int cmp = foldAscii(title1[i]) - foldAscii(title2[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        if (title1.length != title2.length) {
+            return title1.length - title2.length;
+        }
+        for (int i = 0; i < length; i++) {
+            int cmp = (title1[i] & 0xFF) - (title2[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
 
-        res[offset++] = (byte) 0xF3;
-        res[offset++] = (byte) passwordBa.length;
-        System.arraycopy(passwordBa, 0, res, offset, passwordBa.length);
+    private static int foldAscii(byte value) {
+        return (value >= 'A' && value <= 'Z') ? value + 0x20 : value & 0xFF;
+    }
 
-        return res;
+    /**
+     * Build former title TLV used to designate the entry to update.
+     *
+     * @param oldTitle former password title
+     * @return former title TLV
+     */
+    public static byte[] buildOldTitle(String oldTitle) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        writeTLV(res, 0xF4, oldTitle.getBytes());
+        return res.toByteArray();
     }
 
     /**
@@ -109,37 +163,126 @@ public class UiccUtils {
      * @return list of password entry
      */
     public static List<Password> parsePaswordList(byte[] data) {
-        int state = 0;
-        byte[] currentTag = null;
-        int index = 0;
         List<Password> passwordList = new ArrayList<>();
 
-        for (int i = 0; i < data.length; i++) {
-            switch (state) {
-                case 0:
-                    if ((data[i] & 0xFF) == 0xF1) {
-                        state = 1;
-                    }
-                    break;
-                case 1:
-                    currentTag = new byte[data[i] & 0xFF];
-                    state = 2;
-                    index = 0;
-                    break;
-                case 2:
-                    currentTag[index++] = data[i];
-                    if (index == currentTag.length) {
-                        state = 0;
-                        passwordList.add(new Password(new String(currentTag), null, null));
-                    }
-                    break;
-                default:
-                    break;
-            }
+        for (String title : parseHandles(data).keySet()) {
+            passwordList.add(new Password(title, null, null));
         }
         return passwordList;
     }
 
+    /**
+     * Parse GET password list response with handles : each title is followed by the handle of its entry.
+     *
+     * @param data data payload
+     * @return entry handles indexed by title in list order (-1 if the handle is not listed)
+     */
+    public static Map<String, Integer> parseHandles(byte[] data) {
+        Map<String, Integer> handles = new LinkedHashMap<>();
+        String title = null;
+        int i = 0;
+
+        while (i + 1 < data.length) {
+            int tag = data[i] & 0xFF;
+            int length = data[i + 1] & 0xFF;
+            if (i + 2 + length > data.length) {
+                break;
+            }
+            if (tag == 0xF1) {
+                title = new String(data, i + 2, length);
+                handles.put(title, -1);
+            } else if (tag == 0xF7 && title != null && length == 2) {
+                handles.put(title, parseHandle(data, i));
+            }
+            i += 2 + length;
+        }
+        return handles;
+    }
+
+    /**
+     * Parse list changes response : current generation followed by handles of deleted entries and by title and handle
+     * of added or modified entries.
+     *
+     * @param data    data payload
+     * @param changed filled with handles of added or modified entries indexed by title
+     * @param deleted filled with handles of deleted entries
+     * @return current generation or null if the response is invalid
+     */
+    public static byte[] parseChanges(byte[] data, Map<String, Integer> changed, List<Integer> deleted) {
+        if (data.length < 6 || (data[0] & 0xFF) != 0xF8 || data[1] != 4) {
+            return null;
+        }
+        byte[] generation = Arrays.copyOfRange(data, 2, 6);
+        for (int i = 6; i + 4 <= data.length && (data[i] & 0xFF) == 0xF9 && data[i + 1] == 2; i += 4) {
+            deleted.add(parseHandle(data, i));
+        }
+        for (Map.Entry<String, Integer> entry : parseHandles(data).entrySet()) {
+            if (entry.getValue() >= 0) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Parse ADD password response : a handle TLV for each added entry.
+     *
+     * @param data data payload
+     * @return entry handles
+     */
+    public static List<Integer> parseAddedHandles(byte[] data) {
+        List<Integer> handles = new ArrayList<>();
+        for (int i = 0; i + 4 <= data.length && (data[i] & 0xFF) == 0xF7 && data[i + 1] == 2; i += 4) {
+            handles.add(parseHandle(data, i));
+        }
+        return handles;
+    }
+
+    private static int parseHandle(byte[] data, int offset) {
+        return ((data[offset + 2] & 0xFF) << 8) + (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Build handle TLV used in place of the title to designate an entry.
+     *
+     * @param handle entry handle
+     * @return handle TLV
+     */
+    public static byte[] buildHandle(int handle) {
+        return new byte[]{(byte) 0xF7, 0x02, (byte) (handle >> 8), (byte) handle};
+    }
+
+    /**
+     * Build update password entry payload with the entry designated by its handle or title TLV, fields set to null
+     * are left unchanged and not sent.
+     *
+     * @param key      handle or title TLV of the entry
+     * @param title    new password title or null
+     * @param username new username value or null
+     * @param password new password value or null
+     * @return data payload
+     */
+    public static byte[] buildEditPassword(byte[] key, String title, String username, String password) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        res.write(key, 0, key.length);
+        if (title != null) {
+            writeTLV(res, 0xF1, title.getBytes());
+        }
+        if (username != null) {
+            writeTLV(res, 0xF2, username.getBytes());
+        }
+        if (password != null) {
+            writeTLV(res, 0xF3, password.getBytes());
+        }
+        return res.toByteArray();
+    }
+
+    private static void writeTLV(ByteArrayOutputStream out, int tag, byte[] value) {
+        out.write(tag);
+        out.write(value.length);
+        out.write(value, 0, value.length);
+    }
+
     /**
      * Build delete password entry data payload.
      *
@@ -232,6 +375,173 @@ public class UiccUtils {
         return null;
     }
 
+    /**
+     * Parse SELECT response to get the maximum data length supported by the applet.
+     *
+     * @param selectResponse SELECT response including status word
+     * @return maximum data length or 0 if not advertised
+     */
+    public static int parseMaxDataSize(byte[] selectResponse) {
+        byte[] value = parseCapability(selectResponse, 0xF5);
+        if (value == null || value.length != 2) {
+            return 0;
+        }
+        return ((value[0] & 0xFF) << 8) + (value[1] & 0xFF);
+    }
+
+    /**
+     * Parse SELECT response to check if the applet uses the cipher padding instead of its own padding.
+     *
+     * @param selectResponse SELECT response including status word
+     * @return true if padding is done natively by the card
+     */
+    public static boolean parseNativePadding(byte[] selectResponse) {
+        byte[] value = parseCapability(selectResponse, 0xF6);
+        return value != null && value.length == 1 && value[0] == 0x01;
+    }
+
+    /**
+     * Parse memory response : a list of 2 bytes values.
+     *
+     * @param data data payload
+     * @return memory status or null if the response is too short
+     */
+    public static MemoryStatus parseMemory(byte[] data) {
+        if (data.length < 16) {
+            return null;
+        }
+        int[] values = new int[8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ((data[i * 2] & 0xFF) << 8) + (data[i * 2 + 1] & 0xFF);
+        }
+        MemoryStatus memory = new MemoryStatus();
+        memory.setUsedBytes(values[0]);
+        memory.setFreeBytes(values[1]);
+        memory.setEntryCount(values[2]);
+        memory.setFreeEntries(values[3]);
+        memory.setPersistent(values[4]);
+        memory.setTransientReset(values[5]);
+        memory.setTransientDeselect(values[6]);
+        memory.setLargestRecord(values[7]);
+        return memory;
+    }
+
+    /**
+     * Parse session status response : a template holding card state, PIN state, protocol version, capabilities and
+     * once the PIN is validated mode, entry count and free entries.
+     *
+     * @param data data payload
+     * @return session status or null if the response is invalid
+     */
+    public static SessionStatus parseStatus(byte[] data) {
+        if (data.length < 2 || (data[0] & 0xFF) != 0xE0 || (data[1] & 0xFF) != data.length - 2) {
+            return null;
+        }
+        SessionStatus status = new SessionStatus();
+        for (int i = 2; i + 1 < data.length; i += 2 + (data[i + 1] & 0xFF)) {
+            int length = data[i + 1] & 0xFF;
+            if (i + 2 + length > data.length) {
+                return null;
+            }
+            int value = 0;
+            for (int j = 0; j < length && j < 4; j++) {
+                value = (value << 8) + (data[i + 2 + j] & 0xFF);
+            }
+            switch (data[i] & 0xFF) {
+                case 0xE1:
+                    status.setCardState((byte) value);
+                    break;
+                case 0xE2:
+                    status.setPinValidated(length == 2 && data[i + 2] == 0x01);
+                    status.setTriesRemaining(value & 0xFF);
+                    break;
+                case 0xE5:
+                    status.setProtocolVersion(value);
+                    break;
+                case 0xF5:
+                    status.setMaxDataSize(value);
+                    break;
+                case 0xF6:
+                    status.setNativePadding(value == 0x01);
+                    break;
+                case 0xE3:
+                    status.setMode((byte) value);
+                    break;
+                case 0xFA:
+                    status.setEntryCount(value);
+                    break;
+                case 0xE4:
+                    status.setFreeEntries(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Find a capability TLV in SELECT response.
+     *
+     * @param selectResponse SELECT response including status word
+     * @param tag            capability tag
+     * @return capability value or null if not advertised
+     */
+    private static byte[] parseCapability(byte[] selectResponse, int tag) {
+        if (selectResponse == null) {
+            return null;
+        }
+        int end = selectResponse.length - 2;
+        for (int i = 0; i + 1 < end; i += 2 + (selectResponse[i + 1] & 0xFF)) {
+            int length = selectResponse[i + 1] & 0xFF;
+            if ((selectResponse[i] & 0xFF) == tag && i + 2 + length <= end) {
+                return Arrays.copyOfRange(selectResponse, i + 2, i + 2 + length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse Get password entries or Export response : each title is followed by username and password if the entry
+     * exists.
+     *
+     * @param data data payload
+     * @return password entries indexed by title
+     */
+    public static Map<String, Password> parsePasswords(byte[] data) {
+        Map<String, Password> passwords = new HashMap<>();
+        String title = null;
+        String username = null;
+        int i = 0;
+
+        while (i + 1 < data.length) {
+            int tag = data[i] & 0xFF;
+            int length = data[i + 1] & 0xFF;
+            if (i + 2 + length > data.length) {
+                break;
+            }
+            byte[] value = Arrays.copyOfRange(data, i + 2, i + 2 + length);
+            switch (tag) {
+                case 0xF1:
+                    title = new String(value);
+                    username = null;
+                    break;
+                case 0xF2:
+                    username = new String(value);
+                    break;
+                case 0xF3:
+                    if (title != null && username != null) {
+                        passwords.put(title, new Password(title, username, value));
+                    }
+                    break;
+                default:
+                    break;
+            }
+            i += 2 + length;
+        }
+        return passwords;
+    }
+
     /**
      * Convert string to byte array with pin code values.
      */
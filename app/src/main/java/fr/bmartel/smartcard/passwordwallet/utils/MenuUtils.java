@@ -33,6 +33,7 @@ import fr.bmartel.smartcard.passwordwallet.MainActivity;
 import fr.bmartel.smartcard.passwordwallet.R;
 import fr.bmartel.smartcard.passwordwallet.application.PasswordApplication;
 import fr.bmartel.smartcard.passwordwallet.dialog.AboutDialog;
+import fr.bmartel.smartcard.passwordwallet.dialog.MemoryDialog;
 import fr.bmartel.smartcard.passwordwallet.dialog.OpenSourceItemsDialog;
 import fr.bmartel.smartcard.passwordwallet.inter.IDialog;
 
@@ -80,6 +81,12 @@ public class MenuUtils {
                 intent.putExtra(AppLock.EXTRA_TYPE, AppLock.CHANGE_PIN);
                 currentActivity.startActivityForResult(intent, MainActivity.REQUEST_UNLOCK_PIN);
                 break;
+            case R.id.card_memory: {
+                MemoryDialog dialog = new MemoryDialog(currentActivity, application.getUicc().getMemory());
+                activity.setCurrentDialog(dialog);
+                dialog.show();
+                break;
+            }
             case R.id.open_source_components: {
                 OpenSourceItemsDialog dialog = new OpenSourceItemsDialog(currentActivity);
                 activity.setCurrentDialog(dialog);
@@ -23,11 +23,21 @@
  */
 package fr.bmartel.smartcard.passwordwallet;
 
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 /**
  * Password Entry model used to store title, username and password.
+ * <p/>
+ * All entries share a single persistent arena. Each entry owns one chunk of the arena holding a record made of
+ * 3 length-prefixed fields : identifier, username and password. Chunks are allocated by size class (32, 64, 128 or
+ * 256 bytes) and freed chunks are recycled per size class.
+ * <p/>
+ * Stored entries are kept in a list sorted by identifier, a range table indexed by the first identifier byte gives the
+ * first entry of each range so that insertions and prefix lookups only walk one range. Exact lookups use hash buckets,
+ * a Bloom filter over identifiers lets most lookups of a missing identifier return without walking a bucket.
  *
  * @author Bertrand Martel
  */
@@ -37,96 +47,1019 @@ public class PasswordEntry {
     public static short SIZE_USERNAME = 64;
     public static short SIZE_PASSWORD = 128;
 
+    /**
+     * number of hash buckets used to index identifiers (must be a power of 2).
+     */
+    private final static short BUCKET_COUNT = 64;
+
+    /**
+     * number of ranges of the entry list, each range holds identifiers starting with 4 consecutive folded bytes.
+     */
+    private final static short RANGE_COUNT = 64;
+    private final static byte RANGE_SHIFT = 2;
+
+    /**
+     * maximum size of the identifier filter in bytes, the filter has 8 bits per entry up to this size.
+     */
+    private final static short FILTER_MAX_SIZE = 1024;
+
+    /**
+     * number of removed identifiers after which the filter is rebuilt.
+     */
+    private final static short FILTER_STALE_LIMIT = 8;
+
+    /**
+     * filter hash parameters and odd constants scrambling the filter hash into the 2 filter bits.
+     */
+    private final static short FILTER_HASH_SEED = (short) 0x811C;
+    private final static short FILTER_HASH_PRIME = (short) 0x0193;
+    private final static short FILTER_SCRAMBLE1 = (short) 0x9E37;
+    private final static short FILTER_SCRAMBLE2 = (short) 0x5BD1;
+
+    /**
+     * size of the smallest chunk, size class n holds chunks of (CHUNK_MIN_SIZE << n) bytes.
+     */
+    private final static short CHUNK_MIN_SIZE = 32;
+
+    /**
+     * number of size classes (largest chunk must hold a record with all fields at their maximum size).
+     */
+    private final static byte CHUNK_CLASS_COUNT = 4;
+
+    private final static short NO_CHUNK = -1;
+
+    /**
+     * commit buffer usage of adding an entry besides record bytes, counting 2 bytes per reference and chunk splits on
+     * each allocation : creation (56), identifier write with unlink and link (74), username and password writes
+     * (33 each).
+     */
+    private final static short ENTRY_COMMIT_OVERHEAD = 196;
+
+    /**
+     * number of deleted entries remembered to list changes.
+     */
+    private final static short TOMBSTONE_COUNT = 16;
+
+    private final static byte GENERATION_HIGH = 0;
+    private final static byte GENERATION_LOW = 1;
+
+    private final static byte TOMBSTONE_SIZE = 3;
+
+    /**
+     * mask applied to handles so that they stay positive when the reuse sequence wraps.
+     */
+    private final static short HANDLE_MASK = 0x7FFF;
+
+    private final static byte FIELD_ID = 0;
+    private final static byte FIELD_USERNAME = 1;
+    private final static byte FIELD_PASSWORD = 2;
+
     private PasswordEntry next;
+
+    /**
+     * previous entry in the list of entries (null for the first entry and for free entries).
+     */
+    private PasswordEntry prev;
+
+    /**
+     * entries sorted by identifier, ignoring ASCII case first, then by length and then by raw bytes.
+     */
     private static PasswordEntry first;
+    private static PasswordEntry last;
     private static PasswordEntry deleted;
 
-    private byte[] id;
-    private byte[] username;
-    private byte[] password;
+    /**
+     * number of stored entries, updated in the transaction taking or giving back an entry.
+     */
+    private static short entryCount;
+
+    /**
+     * all entries of the pool indexed by slot.
+     */
+    private static PasswordEntry[] slots;
+
+    /**
+     * number of handle bits holding the slot index.
+     */
+    private static byte slotBits;
+
+    /**
+     * vault generation incremented on each change, made of a high part and a 15 bit low part so that both parts are
+     * positive and generations compare as signed shorts.
+     */
+    private static short[] generation;
+
+    /**
+     * generation of the last change of each slot (high and low parts).
+     */
+    private static short[] stamps;
+
+    /**
+     * last deleted entries : handle followed by the generation of the deletion, written in a circular way.
+     */
+    private static short[] tombstones;
+    private static short tombstoneNext;
+
+    /**
+     * generation of the last tombstone overwritten, changes since an older generation are not known anymore.
+     */
+    private static short[] expired;
+
+    /**
+     * handle of this entry : slot index in the low bits and a sequence incremented each time the slot is freed in the
+     * high bits, so that the handle of a deleted entry doesn't match the entry reusing its slot.
+     */
+    private short handle;
 
-    private byte idLength;
-    private byte userNameLength;
-    private byte passwordLength;
+    /**
+     * incremented each time the identifier changes, so that a listing cursor pointing to this entry expires when the
+     * entry moves in the list.
+     */
+    private byte moves;
 
-    private PasswordEntry() {
-        id = new byte[SIZE_ID];
-        username = new byte[SIZE_USERNAME];
-        password = new byte[SIZE_PASSWORD];
-        next = first;
-        first = this;
+    /**
+     * bucket heads indexed by identifier hash.
+     */
+    private static PasswordEntry[] buckets;
+
+    /**
+     * first sorted entry of each range of folded first identifier byte (null if no identifier starts in this range),
+     * so that a lookup only walks the entries of one range.
+     */
+    private static PasswordEntry[] ranges;
+
+    /**
+     * next entry sharing the same bucket.
+     */
+    private PasswordEntry nextInBucket;
+
+    /**
+     * previous entry sharing the same bucket (null for the bucket head).
+     */
+    private PasswordEntry prevInBucket;
+
+    /**
+     * Bloom filter over stored identifiers (2 bits per identifier). Bits of removed identifiers are only cleared when
+     * the filter is rebuilt so a set bit may be stale, a cleared bit means that no stored identifier maps to it.
+     */
+    private static byte[] filter;
+
+    /**
+     * number of filter bits minus 1.
+     */
+    private static short filterMask;
+
+    /**
+     * shift keeping the high bits of a scrambled hash as filter bit index.
+     */
+    private static byte filterShift;
+
+    /**
+     * number of identifiers removed since the filter was rebuilt.
+     */
+    private static short filterStale;
+
+    /**
+     * false while the filter is rebuilt, so that a torn rebuild never hides a stored identifier.
+     */
+    private static boolean filterValid;
+
+    /**
+     * arena storing all records.
+     */
+    private static byte[] heap;
+
+    /**
+     * offset of the never allocated part of the arena.
+     */
+    private static short heapTop;
+
+    /**
+     * number of bytes in allocated chunks.
+     */
+    private static short heapUsed;
+
+    /**
+     * first free chunk for each size class (the next free chunk offset is stored in the 2 first bytes of a chunk).
+     */
+    private static short[] freeChunks;
+
+    /**
+     * offset of this entry record in the arena.
+     */
+    private short record = NO_CHUNK;
+
+    /**
+     * size class of this entry chunk.
+     */
+    private byte chunkClass;
+
+    private PasswordEntry(short slot) {
+        handle = slot;
+        next = deleted;
+        deleted = this;
+    }
+
+    /**
+     * Allocate the identifier index, the record arena and the whole entry pool. Must be called before any other
+     * operation.
+     *
+     * @param capacity maximum number of entries
+     * @param heapSize record arena size in bytes
+     */
+    static void init(short capacity, short heapSize) {
+        buckets = new PasswordEntry[BUCKET_COUNT];
+        ranges = new PasswordEntry[RANGE_COUNT];
+        last = null;
+        short filterSize = 8;
+        while (filterSize < capacity && filterSize < FILTER_MAX_SIZE) {
+            filterSize <<= 1;
+        }
+        filter = new byte[filterSize];
+        filterMask = (short) ((short) (filterSize * 8) - 1);
+        filterShift = 16;
+        for (short bits = filterMask; bits != 0; bits >>= 1) {
+            filterShift--;
+        }
+        filterStale = 0;
+        filterValid = true;
+        heap = new byte[heapSize];
+        heapTop = 0;
+        heapUsed = 0;
+        freeChunks = new short[CHUNK_CLASS_COUNT];
+        for (byte i = 0; i < CHUNK_CLASS_COUNT; i++) {
+            freeChunks[i] = NO_CHUNK;
+        }
+        slotBits = 0;
+        while ((short) (1 << slotBits) < capacity) {
+            slotBits++;
+        }
+        generation = new short[2];
+        expired = new short[2];
+        stamps = new short[(short) (capacity * 2)];
+        tombstones = new short[(short) (TOMBSTONE_COUNT * TOMBSTONE_SIZE)];
+        for (short i = 0; i < TOMBSTONE_COUNT; i++) {
+            tombstones[(short) (i * TOMBSTONE_SIZE)] = -1;
+        }
+        tombstoneNext = 0;
+        entryCount = 0;
+        slots = new PasswordEntry[capacity];
+        for (short i = 0; i < capacity; i++) {
+            slots[i] = new PasswordEntry(i);
+        }
     }
 
+    /**
+     * Get a free entry from the pool.
+     *
+     * @return free entry or null if the pool is exhausted
+     */
     static PasswordEntry getInstance() {
-        if (deleted == null) {
-            return new PasswordEntry();
+        if (deleted == null)
+            return null;
+        PasswordEntry instance = deleted;
+        instance.chunkClass = 0;
+        instance.record = allocateChunk((byte) 0);
+        //the chunk header held the free list link : it is cleared with journaled writes so that an aborted
+        //transaction restores both the link and the free list head
+        heap[instance.record] = 0;
+        heap[(short) (instance.record + 1)] = 0;
+        heap[(short) (instance.record + 2)] = 0;
+        deleted = instance.next;
+        instance.next = null;
+        instance.link();
+        instance.touch();
+        entryCount++;
+        return instance;
+    }
+
+    /**
+     * Get the commit buffer usage of adding an entry in a transaction : each of the 3 field writes rewrites at most the
+     * whole record, in place or in a new chunk.
+     *
+     * @param recordSize size of the record (3 length bytes and field values)
+     * @return commit buffer usage in bytes
+     */
+    static short getCommitSize(short recordSize) {
+        return (short) (ENTRY_COMMIT_OVERHEAD + (short) (3 * recordSize));
+    }
+
+    static boolean hasFreeEntry() {
+        return deleted != null;
+    }
+
+    /**
+     * Get the number of stored entries.
+     *
+     * @return entry count
+     */
+    static short getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Get the number of entries left in the pool.
+     *
+     * @return free entry count
+     */
+    static short getFreeEntryCount() {
+        return (short) (slots.length - entryCount);
+    }
+
+    /**
+     * Get the number of arena bytes used by records.
+     *
+     * @return used bytes
+     */
+    static short getUsedBytes() {
+        return heapUsed;
+    }
+
+    /**
+     * Get the number of arena bytes available for records.
+     *
+     * @return free bytes
+     */
+    static short getFreeBytes() {
+        return (short) (heap.length - heapUsed);
+    }
+
+    /**
+     * Get the size of the largest record that can be allocated, either from a free chunk or from the never allocated
+     * part of the arena.
+     *
+     * @return record size in bytes or 0 if the arena is full
+     */
+    static short getLargestRecordSize() {
+        for (byte chunkClass = CHUNK_CLASS_COUNT - 1; chunkClass >= 0; chunkClass--) {
+            short size = getChunkSize(chunkClass);
+            if (freeChunks[chunkClass] != NO_CHUNK || (short) (heap.length - heapTop) >= size)
+                return size;
+        }
+        return 0;
+    }
+
+    private static short getChunkSize(byte chunkClass) {
+        return (short) (CHUNK_MIN_SIZE << chunkClass);
+    }
+
+    /**
+     * Get the smallest size class able to hold a record.
+     *
+     * @param size record size
+     * @return size class
+     */
+    private static byte getChunkClass(short size) {
+        byte chunkClass = 0;
+        while (getChunkSize(chunkClass) < size) {
+            chunkClass++;
+        }
+        return chunkClass;
+    }
+
+    private static void pushFreeChunk(byte chunkClass, short chunk) {
+        Util.setShort(heap, chunk, freeChunks[chunkClass]);
+        freeChunks[chunkClass] = chunk;
+    }
+
+    /**
+     * Allocate a chunk from the free list of its size class, from the unused part of the arena or by splitting a
+     * larger free chunk.
+     *
+     * @param chunkClass size class
+     * @return chunk offset
+     */
+    private static short allocateChunk(byte chunkClass) {
+        short chunk = freeChunks[chunkClass];
+        short size = getChunkSize(chunkClass);
+
+        if (chunk != NO_CHUNK) {
+            freeChunks[chunkClass] = Util.getShort(heap, chunk);
+        } else if ((short) (heap.length - heapTop) >= size) {
+            chunk = heapTop;
+            heapTop += size;
         } else {
-            PasswordEntry instance = deleted;
-            deleted = instance.next;
-            instance.next = first;
-            first = instance;
-            return instance;
+            byte larger = (byte) (chunkClass + 1);
+            while (larger < CHUNK_CLASS_COUNT && freeChunks[larger] == NO_CHUNK) {
+                larger++;
+            }
+            if (larger == CHUNK_CLASS_COUNT)
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            chunk = freeChunks[larger];
+            freeChunks[larger] = Util.getShort(heap, chunk);
+            while (larger != chunkClass) {
+                larger--;
+                pushFreeChunk(larger, (short) (chunk + getChunkSize(larger)));
+            }
         }
+        heapUsed += size;
+        return chunk;
     }
 
-    static PasswordEntry search(byte[] buf, short ofs, byte len) {
+    private static void freeChunk(byte chunkClass, short chunk) {
+        pushFreeChunk(chunkClass, chunk);
+        heapUsed -= getChunkSize(chunkClass);
+    }
+
+    /**
+     * Compute the bucket index of an identifier.
+     *
+     * @param buf buffer holding the identifier
+     * @param ofs identifier offset
+     * @param len identifier length
+     * @return bucket index
+     */
+    private static short hash(byte[] buf, short ofs, short len) {
+        short h = 0;
+        for (short i = 0; i < len; i++) {
+            h = (short) ((short) (h * 31) + buf[(short) (ofs + i)]);
+        }
+        return (short) (h & (short) (BUCKET_COUNT - 1));
+    }
+
+    /**
+     * Compute the filter hash of an identifier : each byte is xored then multiplied by an odd constant, which spreads
+     * identifiers differing by one byte better than the bucket hash.
+     *
+     * @param buf buffer holding the identifier
+     * @param ofs identifier offset
+     * @param len identifier length
+     * @return identifier hash
+     */
+    private static short filterHash(byte[] buf, short ofs, short len) {
+        short h = FILTER_HASH_SEED;
+        for (short i = 0; i < len; i++) {
+            h = (short) ((short) (h ^ (buf[(short) (ofs + i)] & 0xFF)) * FILTER_HASH_PRIME);
+        }
+        return h;
+    }
+
+    /**
+     * Set the filter bits of an identifier. The empty identifier of an entry being created is not filtered.
+     *
+     * @param buf buffer holding the identifier
+     * @param ofs identifier offset
+     * @param len identifier length
+     */
+    private static void addToFilter(byte[] buf, short ofs, short len) {
+        if (len == 0)
+            return;
+        short h = filterHash(buf, ofs, len);
+        setFilterBit(getFilterBit(h, FILTER_SCRAMBLE1));
+        setFilterBit(getFilterBit(h, FILTER_SCRAMBLE2));
+    }
+
+    /**
+     * Get a filter bit index from the high bits of the identifier hash multiplied by an odd constant, the low bits of
+     * the hash are too regular for similar identifiers.
+     *
+     * @param h        identifier hash
+     * @param scramble odd constant
+     * @return filter bit index
+     */
+    private static short getFilterBit(short h, short scramble) {
+        return (short) ((short) ((short) (h * scramble) >> filterShift) & filterMask);
+    }
+
+    private static void setFilterBit(short bit) {
+        byte mask = (byte) (1 << (bit & 7));
+        short index = (short) (bit >> 3);
+        if ((filter[index] & mask) == 0)
+            filter[index] |= mask;
+    }
+
+    private static boolean isFilterBitSet(short bit) {
+        return (filter[(short) (bit >> 3)] & (byte) (1 << (bit & 7))) != 0;
+    }
+
+    /**
+     * Check the filter before looking up an identifier. A false positive only costs a bucket walk.
+     *
+     * @param buf buffer holding the identifier
+     * @param ofs identifier offset
+     * @param len identifier length
+     * @return false if the identifier is not stored, true if it may be stored
+     */
+    static boolean mayContain(byte[] buf, short ofs, short len) {
+        if (!filterValid || len == 0)
+            return true;
+        short h = filterHash(buf, ofs, len);
+        return isFilterBitSet(getFilterBit(h, FILTER_SCRAMBLE1)) && isFilterBitSet(getFilterBit(h, FILTER_SCRAMBLE2));
+    }
+
+    /**
+     * Rebuild the filter from the stored identifiers once enough identifiers were removed. Nothing is done inside a
+     * transaction : the filter is written directly and an aborted transaction could bring back identifiers whose bits
+     * were cleared.
+     */
+    static void refreshFilter() {
+        if (JCSystem.getTransactionDepth() != 0 || filterStale == 0)
+            return;
+        if (filterStale < FILTER_STALE_LIMIT && first != null)
+            return;
+        filterValid = false;
+        Util.arrayFillNonAtomic(filter, (short) 0, (short) filter.length, (byte) 0);
         for (PasswordEntry pe = first; pe != null; pe = pe.next) {
-            if (pe.idLength != len) continue;
-            if (Util.arrayCompare(pe.id, (short) 0, buf, ofs, len) == 0)
-                return pe;
+            addToFilter(heap, (short) (pe.record + 1), getLength(pe.record));
         }
-        return null;
+        filterStale = 0;
+        filterValid = true;
     }
 
-    public static PasswordEntry getFirst() {
-        return first;
+    /**
+     * Insert this entry in the bucket and at the position in the list matching its current identifier.
+     */
+    private void link() {
+        short index = hash(heap, (short) (record + 1), getLength(record));
+        prevInBucket = null;
+        nextInBucket = buckets[index];
+        if (nextInBucket != null)
+            nextInBucket.prevInBucket = this;
+        buckets[index] = this;
+        addToFilter(heap, (short) (record + 1), getLength(record));
+        linkInList();
     }
 
-    private void remove() {
-        if (first == this) {
+    /**
+     * Remove this entry from the bucket and from the list, the identifier is only hashed if this entry is the bucket
+     * head. Nothing is done if this entry is not linked.
+     */
+    private void unlink() {
+        if (prev == null && first != this)
+            return;
+        if (prevInBucket == null) {
+            buckets[hash(heap, (short) (record + 1), getLength(record))] = nextInBucket;
+        } else {
+            prevInBucket.nextInBucket = nextInBucket;
+        }
+        if (nextInBucket != null)
+            nextInBucket.prevInBucket = prevInBucket;
+        nextInBucket = null;
+        prevInBucket = null;
+        if (getLength(record) != 0 && filterStale < FILTER_STALE_LIMIT)
+            filterStale++;
+        unlinkFromList();
+    }
+
+    /**
+     * Fold an ASCII upper case letter to lower case.
+     *
+     * @param b identifier byte
+     * @return folded byte as an unsigned value
+     */
+    private static short fold(byte b) {
+        if (b >= (byte) 0x41 && b <= (byte) 0x5A)
+            return (short) (b + 0x20);
+        return (short) (b & 0xFF);
+    }
+
+    /**
+     * Get the list range of an identifier.
+     *
+     * @param buf buffer holding the identifier
+     * @param ofs identifier offset
+     * @param len identifier length
+     * @return range index
+     */
+    private static short getRange(byte[] buf, short ofs, short len) {
+        return (len == 0) ? 0 : (short) (fold(buf[ofs]) >> RANGE_SHIFT);
+    }
+
+    /**
+     * Compare this entry identifier with a value in list order : ignoring ASCII case, then by length, then by
+     * raw bytes.
+     *
+     * @param buf buffer holding the value
+     * @param ofs value offset
+     * @param len value length
+     * @return negative, zero or positive if the identifier is before, equal or after the value
+     */
+    private short compareId(byte[] buf, short ofs, short len) {
+        short cmp = comparePrefix(buf, ofs, len);
+        if (cmp != 0)
+            return cmp;
+        short idLen = getLength(record);
+        if (idLen != len)
+            return (short) (idLen - len);
+        for (short i = 0; i < len; i++) {
+            cmp = (short) ((heap[(short) (record + 1 + i)] & 0xFF) - (buf[(short) (ofs + i)] & 0xFF));
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare the beginning of this entry identifier with a prefix, ignoring ASCII case.
+     *
+     * @param buf buffer holding the prefix
+     * @param ofs prefix offset
+     * @param len prefix length
+     * @return negative if the identifier is before all identifiers starting with the prefix, zero if it starts with
+     * the prefix, positive if it is after
+     */
+    short comparePrefix(byte[] buf, short ofs, short len) {
+        short idLen = getLength(record);
+        short length = (idLen < len) ? idLen : len;
+        for (short i = 0; i < length; i++) {
+            short cmp = (short) (fold(heap[(short) (record + 1 + i)]) - fold(buf[(short) (ofs + i)]));
+            if (cmp != 0)
+                return cmp;
+        }
+        return (idLen < len) ? (short) -1 : 0;
+    }
+
+    /**
+     * Check if this entry identifier starts with a prefix, case sensitive.
+     *
+     * @param buf buffer holding the prefix
+     * @param ofs prefix offset
+     * @param len prefix length
+     * @return true if the identifier starts with the prefix
+     */
+    boolean hasPrefix(byte[] buf, short ofs, short len) {
+        return getLength(record) >= len && Util.arrayCompare(heap, (short) (record + 1), buf, ofs, len) == 0;
+    }
+
+    /**
+     * Insert this entry in the sorted list, walking only the entries of its range.
+     */
+    private void linkInList() {
+        short idOfs = (short) (record + 1);
+        short idLen = getLength(record);
+        short range = getRange(heap, idOfs, idLen);
+
+        PasswordEntry after = ranges[range];
+        if (after == null) {
+            for (short i = (short) (range + 1); i < RANGE_COUNT && after == null; i++) {
+                after = ranges[i];
+            }
+        } else {
+            while (after != null && after.compareId(heap, idOfs, idLen) < 0) {
+                after = after.next;
+            }
+        }
+        next = after;
+        prev = (after == null) ? last : after.prev;
+        if (prev == null) {
+            first = this;
+        } else {
+            prev.next = this;
+        }
+        if (next == null) {
+            last = this;
+        } else {
+            next.prev = this;
+        }
+        if (ranges[range] == null || ranges[range] == next)
+            ranges[range] = this;
+    }
+
+    /**
+     * Remove this entry from the sorted list.
+     */
+    private void unlinkFromList() {
+        short range = getRange(heap, (short) (record + 1), getLength(record));
+        if (ranges[range] == this) {
+            ranges[range] = (next != null && getRange(heap, (short) (next.record + 1),
+                    getLength(next.record)) == range) ? next : null;
+        }
+        if (prev == null) {
             first = next;
         } else {
-            for (PasswordEntry pe = first; pe != null; pe = pe.next)
-                if (pe.next == this)
-                    pe.next = next;
+            prev.next = next;
+        }
+        if (next == null) {
+            last = prev;
+        } else {
+            next.prev = prev;
+        }
+        next = null;
+        prev = null;
+    }
+
+    /**
+     * Get the first entry in list order whose identifier starts with a prefix or comes after it, ignoring ASCII
+     * case.
+     *
+     * @param buf buffer holding the prefix
+     * @param ofs prefix offset
+     * @param len prefix length
+     * @return entry or null if all identifiers come before the prefix
+     */
+    static PasswordEntry searchPrefix(byte[] buf, short ofs, short len) {
+        if (len == 0)
+            return first;
+        short range = getRange(buf, ofs, len);
+        PasswordEntry pe = ranges[range];
+        for (short i = (short) (range + 1); pe == null && i < RANGE_COUNT; i++) {
+            pe = ranges[i];
         }
+        while (pe != null && pe.comparePrefix(buf, ofs, len) < 0) {
+            pe = pe.next;
+        }
+        return pe;
+    }
+
+    static PasswordEntry search(byte[] buf, short ofs, byte len) {
+        if (!mayContain(buf, ofs, (short) (len & 0xFF)))
+            return null;
+        for (PasswordEntry pe = buckets[hash(buf, ofs, (short) (len & 0xFF))]; pe != null; pe = pe.nextInBucket) {
+            if (heap[pe.record] != len) continue;
+            if (Util.arrayCompare(heap, (short) (pe.record + 1), buf, ofs, (short) (len & 0xFF)) == 0)
+                return pe;
+        }
+        return null;
+    }
+
+    /**
+     * Get the entry matching a handle.
+     *
+     * @param handle entry handle
+     * @return entry or null if the handle doesn't match any stored entry
+     */
+    static PasswordEntry getByHandle(short handle) {
+        short slot = (short) (handle & (short) ((short) (1 << slotBits) - 1));
+        if (handle < 0 || slot >= slots.length)
+            return null;
+        PasswordEntry pe = slots[slot];
+        if (pe.handle != handle || pe.record == NO_CHUNK)
+            return null;
+        return pe;
+    }
+
+    public short getHandle() {
+        return handle;
+    }
+
+    private short getSlot() {
+        return (short) (handle & (short) ((short) (1 << slotBits) - 1));
+    }
+
+    /**
+     * Increment the vault generation.
+     */
+    private static void nextGeneration() {
+        generation[GENERATION_LOW]++;
+        if (generation[GENERATION_LOW] < 0) {
+            generation[GENERATION_LOW] = 0;
+            generation[GENERATION_HIGH]++;
+        }
+    }
+
+    /**
+     * Stamp this entry with a new generation.
+     */
+    private void touch() {
+        nextGeneration();
+        short ofs = (short) (getSlot() * 2);
+        stamps[ofs] = generation[GENERATION_HIGH];
+        stamps[(short) (ofs + 1)] = generation[GENERATION_LOW];
+    }
+
+    /**
+     * Check if a generation is more recent than another one.
+     *
+     * @param high      generation high part
+     * @param low       generation low part
+     * @param otherHigh other generation high part
+     * @param otherLow  other generation low part
+     * @return true if the first generation is more recent
+     */
+    private static boolean isAfter(short high, short low, short otherHigh, short otherLow) {
+        return high > otherHigh || (high == otherHigh && low > otherLow);
+    }
+
+    /**
+     * Write the vault generation (high and low parts).
+     *
+     * @param buf output buffer
+     * @param ofs output offset
+     * @return offset following the generation
+     */
+    static short getGeneration(byte[] buf, short ofs) {
+        ofs = Util.setShort(buf, ofs, generation[GENERATION_HIGH]);
+        return Util.setShort(buf, ofs, generation[GENERATION_LOW]);
+    }
+
+    /**
+     * Check if changes since a generation can be listed : the generation must not be more recent than the vault and
+     * the deletions since this generation must all be remembered.
+     *
+     * @param high generation high part
+     * @param low  generation low part
+     * @return true if changes are known
+     */
+    static boolean hasChangesSince(short high, short low) {
+        return !isAfter(high, low, generation[GENERATION_HIGH], generation[GENERATION_LOW]) &&
+                !isAfter(expired[GENERATION_HIGH], expired[GENERATION_LOW], high, low);
+    }
+
+    /**
+     * Check if this entry changed after a generation.
+     *
+     * @param high generation high part
+     * @param low  generation low part
+     * @return true if the entry was added or modified after this generation
+     */
+    boolean isChangedSince(short high, short low) {
+        short ofs = (short) (getSlot() * 2);
+        return isAfter(stamps[ofs], stamps[(short) (ofs + 1)], high, low);
+    }
+
+    /**
+     * Get the handle of a remembered deleted entry.
+     *
+     * @param index tombstone index
+     * @param high  generation high part
+     * @param low   generation low part
+     * @return handle of the entry or -1 if no entry was deleted after this generation at this index
+     */
+    static short getDeletedHandle(short index, short high, short low) {
+        short ofs = (short) (index * TOMBSTONE_SIZE);
+        if (tombstones[ofs] == -1 ||
+                !isAfter(tombstones[(short) (ofs + 1)], tombstones[(short) (ofs + 2)], high, low))
+            return -1;
+        return tombstones[ofs];
+    }
+
+    static short getTombstoneCount() {
+        return TOMBSTONE_COUNT;
+    }
+
+    /**
+     * Remember the deletion of this entry, the oldest tombstone is overwritten.
+     */
+    private void bury() {
+        nextGeneration();
+        short ofs = (short) (tombstoneNext * TOMBSTONE_SIZE);
+        if (tombstones[ofs] != -1) {
+            expired[GENERATION_HIGH] = tombstones[(short) (ofs + 1)];
+            expired[GENERATION_LOW] = tombstones[(short) (ofs + 2)];
+        }
+        tombstones[ofs] = handle;
+        tombstones[(short) (ofs + 1)] = generation[GENERATION_HIGH];
+        tombstones[(short) (ofs + 2)] = generation[GENERATION_LOW];
+        tombstoneNext = (short) ((short) (tombstoneNext + 1) % TOMBSTONE_COUNT);
+    }
+
+    public static PasswordEntry getFirst() {
+        return first;
     }
 
     private void recycle() {
         next = deleted;
-        idLength = 0;
-        userNameLength = 0;
-        passwordLength = 0;
+        freeChunk(chunkClass, record);
+        record = NO_CHUNK;
+        handle = (short) ((short) (handle + (short) (1 << slotBits)) & HANDLE_MASK);
         deleted = this;
+        entryCount--;
     }
 
     static void delete(byte[] buf, short ofs, byte len) {
         PasswordEntry pe = search(buf, ofs, len);
-        if (pe != null) {
+        if (pe != null)
+            pe.delete();
+    }
+
+    /**
+     * Delete this entry in a transaction, the filter is rebuilt afterwards if needed.
+     */
+    void delete() {
+        JCSystem.beginTransaction();
+        discard();
+        JCSystem.commitTransaction();
+        refreshFilter();
+    }
+
+    /**
+     * Delete all entries, each entry is deleted in its own transaction to keep the commit buffer usage bounded.
+     */
+    static void deleteAll() {
+        while (first != null) {
             JCSystem.beginTransaction();
-            pe.remove();
-            pe.recycle();
+            first.discard();
             JCSystem.commitTransaction();
         }
+        refreshFilter();
+    }
+
+    /**
+     * Remove this entry from the index and the list and give it back to the pool.
+     */
+    void discard() {
+        bury();
+        unlink();
+        recycle();
+    }
+
+    /**
+     * Give back an entry whose creation failed : its handle was never sent so no deletion is remembered.
+     */
+    void release() {
+        unlink();
+        recycle();
+    }
+
+    private static short getLength(short ofs) {
+        return (short) (heap[ofs] & 0xFF);
+    }
+
+    /**
+     * Get the arena offset of a field length.
+     *
+     * @param field field index
+     * @return field offset
+     */
+    private short getFieldOffset(byte field) {
+        short ofs = record;
+        for (byte i = 0; i < field; i++) {
+            ofs += (short) (getLength(ofs) + 1);
+        }
+        return ofs;
+    }
+
+    private byte getField(byte field, byte[] buf, short ofs) {
+        short fieldOfs = getFieldOffset(field);
+        Util.arrayCopy(heap, (short) (fieldOfs + 1), buf, ofs, getLength(fieldOfs));
+        return heap[fieldOfs];
+    }
+
+    /**
+     * Update a field, the record is moved to another chunk if its size class changes.
+     *
+     * @param field field index
+     * @param buf   buffer holding the new value
+     * @param ofs   new value offset
+     * @param len   new value length
+     */
+    private void setField(byte field, byte[] buf, short ofs, byte len) {
+        short fieldOfs = getFieldOffset(field);
+        short tailOfs = (short) (fieldOfs + getLength(fieldOfs) + 1);
+        short endOfs = getFieldOffset(FIELD_PASSWORD);
+        endOfs += (short) (getLength(endOfs) + 1);
+        short tailLength = (short) (endOfs - tailOfs);
+        short newLength = (short) (len & 0xFF);
+        short size = (short) ((short) (fieldOfs - record) + newLength + 1 + tailLength);
+        byte newClass = getChunkClass(size);
+
+        if (newClass != chunkClass) {
+            short newRecord = allocateChunk(newClass);
+            Util.arrayCopy(heap, record, heap, newRecord, (short) (fieldOfs - record));
+            Util.arrayCopy(heap, tailOfs, heap, (short) (newRecord + (short) (size - tailLength)), tailLength);
+            freeChunk(chunkClass, record);
+            fieldOfs = (short) (newRecord + (short) (fieldOfs - record));
+            record = newRecord;
+            chunkClass = newClass;
+        } else {
+            Util.arrayCopy(heap, tailOfs, heap, (short) (fieldOfs + newLength + 1), tailLength);
+        }
+        heap[fieldOfs] = len;
+        Util.arrayCopy(buf, ofs, heap, (short) (fieldOfs + 1), newLength);
+        touch();
+    }
+
+    /**
+     * Compare a field with a value.
+     *
+     * @param field field index
+     * @param buf   buffer holding the value
+     * @param ofs   value offset
+     * @param len   value length
+     * @return true if the field holds the same bytes
+     */
+    private boolean isFieldEqual(byte field, byte[] buf, short ofs, byte len) {
+        short fieldOfs = getFieldOffset(field);
+        return heap[fieldOfs] == len &&
+                Util.arrayCompare(heap, (short) (fieldOfs + 1), buf, ofs, (short) (len & 0xFF)) == 0;
+    }
+
+    boolean isIdEqual(byte[] buf, short ofs, byte len) {
+        return isFieldEqual(FIELD_ID, buf, ofs, len);
+    }
+
+    boolean isUserNameEqual(byte[] buf, short ofs, byte len) {
+        return isFieldEqual(FIELD_USERNAME, buf, ofs, len);
+    }
+
+    boolean isPasswordEqual(byte[] buf, short ofs, byte len) {
+        return isFieldEqual(FIELD_PASSWORD, buf, ofs, len);
     }
 
     byte getId(byte[] buf, short ofs) {
-        Util.arrayCopy(id, (short) 0, buf, ofs, idLength);
-        return idLength;
+        return getField(FIELD_ID, buf, ofs);
     }
 
     byte getUserName(byte[] buf, short ofs) {
-        Util.arrayCopy(username, (short) 0, buf, ofs, userNameLength);
-        return userNameLength;
+        return getField(FIELD_USERNAME, buf, ofs);
     }
 
     byte getPassword(byte[] buf, short ofs) {
-        Util.arrayCopy(password, (short) 0, buf, ofs, passwordLength);
-        return passwordLength;
+        return getField(FIELD_PASSWORD, buf, ofs);
     }
 
     public byte getIdLength() {
-        return idLength;
+        return heap[record];
     }
 
     public PasswordEntry getNext() {
@@ -134,25 +1067,35 @@ public class PasswordEntry {
     }
 
     public void setId(byte[] buf, short ofs, byte len) {
-        Util.arrayCopy(buf, ofs, id, (short) 0, len);
-        idLength = len;
+        unlink();
+        try {
+            setField(FIELD_ID, buf, ofs, len);
+        } catch (ISOException e) {
+            //no chunk was available and the record is unchanged : the entry is linked back under its identifier
+            link();
+            ISOException.throwIt(e.getReason());
+        }
+        link();
+        moves++;
+    }
+
+    byte getMoves() {
+        return moves;
     }
 
     public void setUserName(byte[] buf, short ofs, byte len) {
-        Util.arrayCopy(buf, ofs, username, (short) 0, len);
-        userNameLength = len;
+        setField(FIELD_USERNAME, buf, ofs, len);
     }
 
     public void setPassword(byte[] buf, short ofs, byte len) {
-        Util.arrayCopy(buf, ofs, password, (short) 0, len);
-        passwordLength = len;
+        setField(FIELD_PASSWORD, buf, ofs, len);
     }
 
-    public byte getPasswordLength() {
-        return passwordLength;
+    public byte getUserNameLength() {
+        return heap[getFieldOffset(FIELD_USERNAME)];
     }
 
-    public byte[] getPasword() {
-        return password;
+    public byte getPasswordLength() {
+        return heap[getFieldOffset(FIELD_PASSWORD)];
     }
 }
@@ -27,14 +27,18 @@ import org.globalplatform.GPSystem;
 
 import javacard.framework.APDU;
 import javacard.framework.Applet;
+import javacard.framework.CardRuntimeException;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.OwnerPIN;
 import javacard.framework.Util;
 import javacard.security.AESKey;
+import javacard.security.CryptoException;
 import javacard.security.KeyBuilder;
+import javacard.security.MessageDigest;
 import javacard.security.RandomData;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
 /**
@@ -42,22 +46,168 @@ import javacardx.crypto.Cipher;
  *
  * @author Bertrand Martel
  */
-public class PasswordWalletApplet extends Applet {
+public class PasswordWalletApplet extends Applet implements ExtendedLength {
 
     private OwnerPIN pin;
 
-    private Cipher aesCipher;
+    /**
+     * separate ciphers for encryption and decryption, each one is initialized on first use and stays initialized until
+     * deselection (doFinal resets a cipher to its initial state).
+     */
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
     private AESKey aesKey;
+
+    /**
+     * digest of the entry directory (identifiers and handles).
+     */
+    private MessageDigest directoryDigest;
+
+    /**
+     * true if the ciphers pad and unpad data themselves.
+     */
+    private boolean nativePadding;
+
+    /**
+     * initialization state of encrypt and decrypt ciphers, cleared on deselect. The key is only set at installation, a
+     * key change must clear it too.
+     */
+    private boolean[] cipherReady;
+    private final static byte CIPHER_ENCRYPT = 0;
+    private final static byte CIPHER_DECRYPT = 1;
+
+    /**
+     * number of cipher initializations since selection, checked by simulator tests.
+     */
+    private short[] cipherInitCount;
     private final static short KEY_SIZE = 32;
+    private final static short AES_BLOCK_SIZE = 16;
+
+    /**
+     * maximum clear text data length for encrypt/decrypt using extended length APDU.
+     */
+    public final static short MAX_DATA_SIZE = 2048;
+
+    /**
+     * receive buffer for extended length data not fitting in APDU buffer (includes room for padding) and staging area
+     * for chained commands.
+     */
+    private byte[] workBuffer;
+
+    /**
+     * number of commands per instruction (4 bytes each, in COUNTED_INS order followed by other instructions) and per
+     * status word (4 bytes each, in COUNTED_SW order followed by other status words). Counters are persistent and
+     * written with non atomic copies so that counting doesn't use the commit buffer.
+     */
+    private byte[] insCounters;
+    private byte[] swCounters;
+
+    /**
+     * transient copy of the counter being incremented.
+     */
+    private byte[] counterBuffer;
+    private final static short COUNTER_SIZE = 4;
+
+    /**
+     * instructions having their own counter.
+     */
+    private final static byte[] COUNTED_INS = {
+            0x30, 0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x3B, 0x3C,
+            0x10, 0x11, 0x12, 0x13, 0x40, 0x41, 0x20, 0x24, 0x50, 0x51, 0x52, 0x54, 0x55, (byte) 0xC0
+    };
+
+    /**
+     * status words having their own counter, 61XX and 63CX are counted without their low bits.
+     */
+    private final static short[] COUNTED_SW = {
+            (short) 0x9000, (short) 0x6100, (short) 0x63C0, (short) 0x6700, (short) 0x6982, (short) 0x6985,
+            (short) 0x6A80, (short) 0x6A82, (short) 0x6A84, (short) 0x6A88, (short) 0x6A8A, (short) 0x6883,
+            (short) 0x6A81, (short) 0x6A83, (short) 0x6D00, (short) 0x6E00, (short) 0x6F00
+    };
+
+    /**
+     * P1 flag set on every block of a chained command except the last one.
+     */
+    public final static byte P1_MORE_BLOCKS = (byte) 0x80;
+
+    /**
+     * P1 value of LIST requesting the handle of each entry after its identifier.
+     */
+    public final static byte P1_LIST_HANDLES = (byte) 0x01;
+
+    /**
+     * P1 value of GET COUNTERS clearing all counters after reading them.
+     */
+    public final static byte P1_RESET_COUNTERS = (byte) 0x01;
+
+    /**
+     * P1 value of SEARCH ignoring ASCII case.
+     */
+    public final static byte P1_IGNORE_CASE = (byte) 0x01;
+
+    /**
+     * chaining state : instruction being chained and length of data staged in the work buffer.
+     */
+    private short[] chain;
+    private final static byte CHAIN_INS = 0;
+    private final static byte CHAIN_LENGTH = 1;
+
+    /**
+     * maximum response data length of a short APDU.
+     */
+    private final static short MAX_RESPONSE_SIZE = 256;
+
+    /**
+     * maximum length of a length prefixed item in batch encrypt/decrypt.
+     */
+    private final static short MAX_ITEM_SIZE = 255;
+
+    /**
+     * response data still available with GET RESPONSE : type of pending data, offset and length of data remaining in
+     * the work buffer and listing mode.
+     */
+    private short[] pendingResponse;
+    private final static byte PENDING_TYPE = 0;
+    private final static byte PENDING_OFFSET = 1;
+    private final static byte PENDING_LENGTH = 2;
+    private final static byte PENDING_MODE = 3;
+
+    private final static byte PENDING_NONE = 0;
+    private final static byte PENDING_LIST = 1;
+    private final static byte PENDING_DATA = 2;
+    private final static byte PENDING_RETRIEVE = 3;
+    private final static byte PENDING_EXPORT = 4;
+
+    /**
+     * listing modes : identifiers, identifiers with handles, entries changed since a generation with handles or entries
+     * matching a prefix with handles, all in identifier order. LIST_CURSOR may be combined with the first two modes to end each
+     * partial page with a cursor.
+     */
+    private final static byte LIST_IDENTIFIERS = 0;
+    private final static byte LIST_HANDLES = 1;
+    private final static byte LIST_CHANGES = 2;
+    private final static byte LIST_SEARCH = 3;
+    private final static byte LIST_SEARCH_IGNORE_CASE = 4;
+    private final static byte LIST_CURSOR = 0x10;
 
     private final static byte INS_ADD_PASSWORD = (byte) 0x30;
+    private final static byte INS_ADD_PASSWORDS = (byte) 0x31;
     private final static byte INS_RETRIEVE_PASSWORD = (byte) 0x32;
+    private final static byte INS_RETRIEVE_PASSWORDS = (byte) 0x35;
     private final static byte INS_EDIT_PASSWORD = (byte) 0x33;
     private final static byte INS_DELETE_PASSWORD = (byte) 0x34;
     private final static byte INS_LIST_PASSWORD = (byte) 0x36;
+    private final static byte INS_LIST_CHANGES = (byte) 0x3A;
+    private final static byte INS_GET_DIGEST = (byte) 0x3B;
+    private final static byte INS_SEARCH = (byte) 0x3C;
+    private final static byte INS_EXPORT_PASSWORDS = (byte) 0x37;
+    private final static byte INS_IMPORT_PASSWORDS = (byte) 0x38;
+    private final static byte INS_DELETE_PASSWORDS = (byte) 0x39;
 
     private final static byte INS_ENCRYPT = (byte) 0x10;
     private final static byte INS_DECRYPT = (byte) 0x11;
+    private final static byte INS_ENCRYPT_ALL = (byte) 0x12;
+    private final static byte INS_DECRYPT_ALL = (byte) 0x13;
 
     private final static byte INS_GET_MODE = (byte) 0x40;
     private final static byte INS_SET_MODE = (byte) 0x41;
@@ -67,19 +217,94 @@ public class PasswordWalletApplet extends Applet {
 
     private final static byte INS_CARD_STATE = (byte) 0x50;
     private final static byte INS_PIN_CHECK = (byte) 0x51;
+    private final static byte INS_GET_STATUS = (byte) 0x52;
+    private final static byte INS_GET_MEMORY = (byte) 0x54;
+    private final static byte INS_GET_COUNTERS = (byte) 0x55;
+
+    private final static byte INS_GET_RESPONSE = (byte) 0xC0;
 
     public final static byte PIN_TRY_LIMIT = (byte) 3;
     public final static byte PIN_MAX_SIZE = (byte) 16;
 
+    public final static short DEFAULT_CAPACITY = 64;
+
+    /**
+     * record storage reserved per entry when the storage size is not specified at installation.
+     */
+    public final static short DEFAULT_RECORD_SIZE = 64;
+
+    /**
+     * maximum number of entries added in a single transaction by a batch ADD or an import.
+     */
+    private final static short BATCH_TRANSACTION_ENTRIES = 8;
+
     private final static short SW_WRONG_PIN = (short) 0x63c0;
 
     public final static short SW_DUPLICATE_IDENTIFIER = (short) 0x6A8A;
     public final static short SW_IDENTIFIER_NOT_FOUND = (short) 0x6A82;
+    public final static short SW_CHANGES_NOT_AVAILABLE = (short) 0x6A88;
+
+    /**
+     * the entry a listing cursor points to has been deleted or renamed, the listing must be restarted (record not
+     * found, distinct from SW_CHANGES_NOT_AVAILABLE).
+     */
+    public final static short SW_CURSOR_EXPIRED = (short) 0x6A83;
 
     public final static byte TAG_IDENTIFIER = (byte) 0xF1;
     public final static byte TAG_USERNAME = (byte) 0xF2;
     public final static byte TAG_PASSWORD = (byte) 0xF3;
     public final static byte TAG_OLD_IDENTIFIER = (byte) 0xF4;
+    public final static byte TAG_MAX_DATA_SIZE = (byte) 0xF5;
+    public final static byte TAG_PADDING_MODE = (byte) 0xF6;
+    public final static byte TAG_HANDLE = (byte) 0xF7;
+    public final static byte TAG_GENERATION = (byte) 0xF8;
+    public final static byte TAG_DELETED_HANDLE = (byte) 0xF9;
+    public final static byte TAG_ENTRY_COUNT = (byte) 0xFA;
+    public final static byte TAG_DIGEST = (byte) 0xFB;
+    public final static byte TAG_CURSOR = (byte) 0xFC;
+
+    /**
+     * length of a listing cursor : handle of the next entry followed by its identifier change count.
+     */
+    private final static byte CURSOR_SIZE = 3;
+
+    /**
+     * length of the directory digest (truncated SHA-1).
+     */
+    public final static short DIGEST_SIZE = 8;
+
+    /**
+     * session status template and its fields.
+     */
+    public final static byte TAG_STATUS = (byte) 0xE0;
+    public final static byte TAG_CARD_STATE = (byte) 0xE1;
+    public final static byte TAG_PIN_STATE = (byte) 0xE2;
+    public final static byte TAG_MODE = (byte) 0xE3;
+    public final static byte TAG_FREE_ENTRIES = (byte) 0xE4;
+    public final static byte TAG_PROTOCOL_VERSION = (byte) 0xE5;
+    public final static byte TAG_INS_COUNTERS = (byte) 0xE6;
+    public final static byte TAG_SW_COUNTERS = (byte) 0xE7;
+
+    /**
+     * version of the command set (major, minor).
+     */
+    public final static short PROTOCOL_VERSION = (short) 0x0200;
+
+    /**
+     * length of an entry handle.
+     */
+    public final static short HANDLE_SIZE = 2;
+
+    /**
+     * padding done by the applet (0x80 followed by zeros) or by the cipher with the same ISO 9797-1 method 2.
+     */
+    public final static byte PADDING_SOFTWARE = 0x00;
+    public final static byte PADDING_NATIVE = 0x01;
+
+    /**
+     * ALG_AES_CBC_ISO9797_M2 from Java Card 3.0.1, not defined in the 2.2.2 API.
+     */
+    private final static byte ALG_AES_CBC_ISO9797_M2 = 23;
 
     private PasswordEntry current;
 
@@ -88,10 +313,32 @@ public class PasswordWalletApplet extends Applet {
 
     private byte mode = MODE_APP_STORAGE;
 
-    private PasswordWalletApplet() {
+    private PasswordWalletApplet(short capacity, short heapSize) {
         pin = new OwnerPIN(PIN_TRY_LIMIT, PIN_MAX_SIZE);
 
-        aesCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        PasswordEntry.init(capacity, heapSize);
+
+        workBuffer = JCSystem.makeTransientByteArray((short) (MAX_DATA_SIZE + AES_BLOCK_SIZE), JCSystem.CLEAR_ON_DESELECT);
+        chain = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+        pendingResponse = JCSystem.makeTransientShortArray((short) 4, JCSystem.CLEAR_ON_DESELECT);
+        counterBuffer = JCSystem.makeTransientByteArray(COUNTER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        insCounters = new byte[(short) ((short) (COUNTED_INS.length + 1) * COUNTER_SIZE)];
+        swCounters = new byte[(short) ((short) (COUNTED_SW.length + 1) * COUNTER_SIZE)];
+
+        cipherReady = JCSystem.makeTransientBooleanArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+        cipherInitCount = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+
+        //native padding produces the same ciphertext as software padding, stored passwords are compatible
+        try {
+            encryptCipher = Cipher.getInstance(ALG_AES_CBC_ISO9797_M2, false);
+            decryptCipher = Cipher.getInstance(ALG_AES_CBC_ISO9797_M2, false);
+            nativePadding = true;
+        } catch (CryptoException e) {
+            encryptCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+            decryptCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+            nativePadding = false;
+        }
+        directoryDigest = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
         aesKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
         byte[] keyBytes = JCSystem.makeTransientByteArray(KEY_SIZE, JCSystem.CLEAR_ON_DESELECT);
         try {
@@ -103,14 +350,64 @@ public class PasswordWalletApplet extends Applet {
         }
     }
 
+    /**
+     * Install the applet. Application specific parameters may hold the maximum number of password entries (2 bytes)
+     * followed by the size of the record storage (2 bytes), both are allocated at installation.
+     *
+     * @param buffer install parameters
+     * @param offset install parameters offset
+     * @param length install parameters length
+     */
     public static void install(byte[] buffer, short offset, byte length) {
-        (new PasswordWalletApplet()).register();
+        short capacity = DEFAULT_CAPACITY;
+        short heapSize = 0;
+
+        if (length != 0) {
+            short end = (short) (offset + (short) (length & 0xFF));
+            //skip instance AID and control info
+            short ofs = (short) (offset + (short) (buffer[offset] & 0xFF) + 1);
+            if (ofs < end)
+                ofs += (short) ((short) (buffer[ofs] & 0xFF) + 1);
+            if (ofs < end && buffer[ofs] >= 2 && (short) (ofs + 3) <= end)
+                capacity = Util.getShort(buffer, (short) (ofs + 1));
+            if (ofs < end && buffer[ofs] >= 4 && (short) (ofs + 5) <= end)
+                heapSize = Util.getShort(buffer, (short) (ofs + 3));
+        }
+        if (capacity < 1 || heapSize < 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+        if (heapSize == 0) {
+            heapSize = (capacity > (short) (0x7FFF / DEFAULT_RECORD_SIZE)) ?
+                    (short) 0x7FFF : (short) (capacity * DEFAULT_RECORD_SIZE);
+        }
+        (new PasswordWalletApplet(capacity, heapSize)).register();
     }
 
     public void process(APDU apdu) throws ISOException {
-        if (selectingApplet())
+        if (selectingApplet()) {
+            sendCapabilities(apdu);
             return;
+        }
 
+        byte ins = apdu.getBuffer()[ISO7816.OFFSET_INS];
+        try {
+            processCommand(apdu);
+        } catch (ISOException e) {
+            count(ins, e.getReason());
+            throw e;
+        } catch (CardRuntimeException e) {
+            count(ins, ISO7816.SW_UNKNOWN);
+            throw e;
+        }
+        count(ins, ISO7816.SW_NO_ERROR);
+    }
+
+    /**
+     * Process a command other than SELECT.
+     *
+     * @param apdu APDU
+     */
+    private void processCommand(APDU apdu) {
         byte[] buffer = apdu.getBuffer();
 
         short len = apdu.setIncomingAndReceive();
@@ -125,25 +422,54 @@ public class PasswordWalletApplet extends Applet {
                     case INS_CARD_STATE:
                         processCardState();
                         break;
+                    case INS_GET_STATUS:
+                        sendStatus(len);
+                        break;
                     default:
                         ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
                 }
                 break;
             case GPSystem.CARD_SECURED:
 
-                if (buffer[ISO7816.OFFSET_INS] != INS_LIST_PASSWORD)
+                //remaining response data is discarded by any other command than GET RESPONSE
+                if (buffer[ISO7816.OFFSET_INS] != INS_GET_RESPONSE) {
                     current = null;
-                if (((byte) (buffer[ISO7816.OFFSET_CLA] & (byte) 0xFC)) != (byte) 0x90) {
+                    pendingResponse[PENDING_TYPE] = PENDING_NONE;
+                }
+                byte cla = (byte) (buffer[ISO7816.OFFSET_CLA] & (byte) 0xFC);
+                if (cla != (byte) 0x90 && (cla != 0x00 || buffer[ISO7816.OFFSET_INS] != INS_GET_RESPONSE)) {
                     ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
                 }
 
+                byte p1 = buffer[ISO7816.OFFSET_P1];
+                if (isChainable(buffer[ISO7816.OFFSET_INS]))
+                    p1 &= (byte) ~P1_MORE_BLOCKS;
+
+                if (buffer[ISO7816.OFFSET_INS] == INS_LIST_PASSWORD && p1 == P1_LIST_HANDLES)
+                    p1 = 0;
+                if (buffer[ISO7816.OFFSET_INS] == INS_GET_COUNTERS && p1 == P1_RESET_COUNTERS)
+                    p1 = 0;
+                if (buffer[ISO7816.OFFSET_INS] == INS_SEARCH && p1 == P1_IGNORE_CASE)
+                    p1 = 0;
+
                 if ((buffer[ISO7816.OFFSET_INS] != INS_CHANGE_REFERENCE_DATA && (buffer[ISO7816.OFFSET_INS] != INS_VERIFY)) &&
-                        (buffer[ISO7816.OFFSET_P1] != 0 || buffer[ISO7816.OFFSET_P2] != 0))
+                        (p1 != 0 || buffer[ISO7816.OFFSET_P2] != 0))
                     ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
-                if (len != (short) (buffer[ISO7816.OFFSET_LC] & 0xFF))
+                //only encrypt/decrypt accept extended length data, GET RESPONSE has no data
+                if (buffer[ISO7816.OFFSET_INS] == INS_GET_RESPONSE) {
+                    if (len != 0)
+                        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                } else if (!isCipherCommand(buffer[ISO7816.OFFSET_INS]) &&
+                        (apdu.getOffsetCdata() != ISO7816.OFFSET_CDATA || len != (short) (buffer[ISO7816.OFFSET_LC] & 0xFF)))
                     ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
+                //a pending chain is aborted by any other instruction
+                if (chain[CHAIN_INS] != 0 && chain[CHAIN_INS] != buffer[ISO7816.OFFSET_INS]) {
+                    resetChain();
+                    ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+                }
+
                 switch (buffer[ISO7816.OFFSET_INS]) {
                     case INS_GET_MODE:
                         checkAuthentication();
@@ -155,23 +481,31 @@ public class PasswordWalletApplet extends Applet {
                         break;
                     case INS_ENCRYPT:
                         checkAuthentication();
-                        encrypt();
+                        encrypt(apdu, len);
                         break;
                     case INS_DECRYPT:
                         checkAuthentication();
-                        decrypt();
+                        decrypt(apdu, len);
                         break;
-                    case INS_ADD_PASSWORD:
+                    case INS_ENCRYPT_ALL:
                         checkAuthentication();
-                        processAddPasswordEntry();
+                        encryptAll(apdu, len);
                         break;
-                    case INS_RETRIEVE_PASSWORD:
+                    case INS_DECRYPT_ALL:
                         checkAuthentication();
-                        processRetrievePasswordEntry();
+                        decryptAll(apdu, len);
                         break;
+                    case INS_ADD_PASSWORD:
+                    case INS_ADD_PASSWORDS:
                     case INS_EDIT_PASSWORD:
+                    case INS_RETRIEVE_PASSWORDS:
+                    case INS_IMPORT_PASSWORDS:
+                        checkAuthentication();
+                        processChainedCommand(len);
+                        break;
+                    case INS_RETRIEVE_PASSWORD:
                         checkAuthentication();
-                        processEditPasswordEntry();
+                        processRetrievePasswordEntry();
                         break;
                     case INS_DELETE_PASSWORD:
                         checkAuthentication();
@@ -179,7 +513,32 @@ public class PasswordWalletApplet extends Applet {
                         break;
                     case INS_LIST_PASSWORD:
                         checkAuthentication();
-                        processListIdentifiers();
+                        processList(len);
+                        break;
+                    case INS_LIST_CHANGES:
+                        checkAuthentication();
+                        processListChanges(len);
+                        break;
+                    case INS_GET_DIGEST:
+                        checkAuthentication();
+                        sendDigest(len);
+                        break;
+                    case INS_SEARCH:
+                        checkAuthentication();
+                        processSearch(len);
+                        break;
+                    case INS_EXPORT_PASSWORDS:
+                        checkAuthentication();
+                        current = PasswordEntry.getFirst();
+                        sendExportEntries();
+                        break;
+                    case INS_DELETE_PASSWORDS:
+                        checkAuthentication();
+                        PasswordEntry.deleteAll();
+                        break;
+                    case INS_GET_RESPONSE:
+                        checkAuthentication();
+                        processGetResponse();
                         break;
                     case INS_VERIFY:
                         processVerify(len);
@@ -193,6 +552,17 @@ public class PasswordWalletApplet extends Applet {
                     case INS_PIN_CHECK:
                         checkAuthentication();
                         break;
+                    case INS_GET_STATUS:
+                        sendStatus(len);
+                        break;
+                    case INS_GET_MEMORY:
+                        checkAuthentication();
+                        sendMemory();
+                        break;
+                    case INS_GET_COUNTERS:
+                        checkAuthentication();
+                        sendCounters(len);
+                        break;
                     default:
                         ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
                 }
@@ -215,6 +585,24 @@ public class PasswordWalletApplet extends Applet {
         apdu.setOutgoingAndSend((short) 0x00, (short) 1);
     }
 
+    /**
+     * Send applet capabilities in SELECT response : maximum data length for encrypt/decrypt which is more than 255
+     * bytes if extended length APDU are supported and padding mode.
+     *
+     * @param apdu SELECT command
+     */
+    private void sendCapabilities(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+
+        buffer[0] = TAG_MAX_DATA_SIZE;
+        buffer[1] = 2;
+        Util.setShort(buffer, (short) 2, MAX_DATA_SIZE);
+        buffer[4] = TAG_PADDING_MODE;
+        buffer[5] = 1;
+        buffer[6] = nativePadding ? PADDING_NATIVE : PADDING_SOFTWARE;
+        apdu.setOutgoingAndSend((short) 0x00, (short) 7);
+    }
+
     /**
      * return the card state.
      */
@@ -229,226 +617,932 @@ public class PasswordWalletApplet extends Applet {
     }
 
     /**
-     * Set working mode.
+     * Send the session status in a single template : card state, PIN validated flag and tries remaining, protocol
+     * version and capabilities. Mode, entry count, free entries and vault generation are only sent once the PIN is
+     * validated.
+     *
+     * @param len data length
      */
-    private void setMode() {
-        byte[] buffer = APDU.getCurrentAPDUBuffer();
+    private void sendStatus(short len) {
+        APDU apdu = APDU.getCurrentAPDU();
+        byte[] buf = APDU.getCurrentAPDUBuffer();
 
-        if ((short) (buffer[ISO7816.OFFSET_LC] & 0xFF) != 1)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        if (len != 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-        if (buffer[ISO7816.OFFSET_CDATA] != MODE_APP_STORAGE && buffer[ISO7816.OFFSET_CDATA] != MODE_SIM_STORAGE) {
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short offset = 2;
+        buf[offset++] = TAG_CARD_STATE;
+        buf[offset++] = 1;
+        buf[offset++] = GPSystem.getCardContentState();
+        buf[offset++] = TAG_PIN_STATE;
+        buf[offset++] = 2;
+        buf[offset++] = (byte) (pin.isValidated() ? 1 : 0);
+        buf[offset++] = pin.getTriesRemaining();
+        buf[offset++] = TAG_PROTOCOL_VERSION;
+        buf[offset++] = 2;
+        offset = Util.setShort(buf, offset, PROTOCOL_VERSION);
+        buf[offset++] = TAG_MAX_DATA_SIZE;
+        buf[offset++] = 2;
+        offset = Util.setShort(buf, offset, MAX_DATA_SIZE);
+        buf[offset++] = TAG_PADDING_MODE;
+        buf[offset++] = 1;
+        buf[offset++] = nativePadding ? PADDING_NATIVE : PADDING_SOFTWARE;
+
+        if (pin.isValidated()) {
+            buf[offset++] = TAG_MODE;
+            buf[offset++] = 1;
+            buf[offset++] = mode;
+            buf[offset++] = TAG_ENTRY_COUNT;
+            buf[offset++] = 2;
+            offset = Util.setShort(buf, offset, PasswordEntry.getEntryCount());
+            buf[offset++] = TAG_FREE_ENTRIES;
+            buf[offset++] = 2;
+            offset = Util.setShort(buf, offset, PasswordEntry.getFreeEntryCount());
+            buf[offset++] = TAG_GENERATION;
+            buf[offset++] = 4;
+            offset = PasswordEntry.getGeneration(buf, offset);
         }
-        mode = buffer[ISO7816.OFFSET_CDATA];
+        buf[0] = TAG_STATUS;
+        buf[1] = (byte) (offset - 2);
+        apdu.setOutgoingAndSend((short) 0, offset);
     }
 
     /**
-     * Encrypt data.
+     * Send storage usage, each value on 2 bytes : record bytes used, record bytes free, entries used, entries in the
+     * free list, persistent memory available, transient memory available (clear on reset and clear on deselect) and
+     * largest record that can be allocated. Available memory values are capped to 32767 bytes.
      */
-    private void encrypt() {
+    private void sendMemory() {
         APDU apdu = APDU.getCurrentAPDU();
         byte[] buffer = APDU.getCurrentAPDUBuffer();
 
-        if ((short) (buffer[ISO7816.OFFSET_LC] & 0xFF) < 1)
+        if ((short) (buffer[ISO7816.OFFSET_LC] & 0xFF) != 0)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
-        short newLength = addPadding(buffer, (short) ISO7816.OFFSET_CDATA, (short) buffer[ISO7816.OFFSET_LC]);
-        byte[] temp = JCSystem.makeTransientByteArray(newLength, JCSystem.CLEAR_ON_DESELECT);
-        aesCipher.doFinal(buffer, ISO7816.OFFSET_CDATA, newLength, temp, (short) 0x00);
-        Util.arrayCopyNonAtomic(temp, (short) 0x00, buffer, (short) 0x00, newLength);
-        apdu.setOutgoingAndSend((short) 0x00, newLength);
+        short offset = Util.setShort(buffer, (short) 0, PasswordEntry.getUsedBytes());
+        offset = Util.setShort(buffer, offset, PasswordEntry.getFreeBytes());
+        offset = Util.setShort(buffer, offset, PasswordEntry.getEntryCount());
+        offset = Util.setShort(buffer, offset, PasswordEntry.getFreeEntryCount());
+        offset = Util.setShort(buffer, offset, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT));
+        offset = Util.setShort(buffer, offset, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_RESET));
+        offset = Util.setShort(buffer, offset, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT));
+        offset = Util.setShort(buffer, offset, PasswordEntry.getLargestRecordSize());
+        apdu.setOutgoingAndSend((short) 0x00, offset);
     }
 
     /**
-     * Decrypt data.
+     * Increment the counters of the instruction and of the status word of a command.
+     *
+     * @param ins instruction
+     * @param sw  status word
      */
-    private void decrypt() {
-        APDU apdu = APDU.getCurrentAPDU();
-        byte[] buffer = APDU.getCurrentAPDUBuffer();
-
-        if ((short) (buffer[ISO7816.OFFSET_LC] & 0xFF) < 1)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        aesCipher.init(aesKey, Cipher.MODE_DECRYPT);
-        byte[] temp = JCSystem.makeTransientByteArray((short) buffer[ISO7816.OFFSET_LC], JCSystem.CLEAR_ON_DESELECT);
-        aesCipher.doFinal(buffer, ISO7816.OFFSET_CDATA, (short) buffer[ISO7816.OFFSET_LC], temp, (short) 0x00);
-        short newLength = removePadding(temp, (short) buffer[ISO7816.OFFSET_LC]);
-        Util.arrayCopyNonAtomic(temp, (short) 0x00, buffer, (short) 0x00, newLength);
-        apdu.setOutgoingAndSend((short) 0x00, newLength);
+    private void count(byte ins, short sw) {
+        short index = 0;
+        while (index < COUNTED_INS.length && COUNTED_INS[index] != ins) {
+            index++;
+        }
+        increment(insCounters, (short) (index * COUNTER_SIZE));
+
+        if ((short) (sw & (short) 0xFF00) == ISO7816.SW_BYTES_REMAINING_00)
+            sw = ISO7816.SW_BYTES_REMAINING_00;
+        else if ((short) (sw & (short) 0xFFF0) == SW_WRONG_PIN)
+            sw = SW_WRONG_PIN;
+        index = 0;
+        while (index < COUNTED_SW.length && COUNTED_SW[index] != sw) {
+            index++;
+        }
+        increment(swCounters, (short) (index * COUNTER_SIZE));
     }
 
     /**
-     * Add padding for AES encryption.
+     * Increment a 4 bytes counter without journaling, the counter stops at its maximum value.
      *
-     * @param data
-     * @param offset
-     * @param length
-     * @return
+     * @param counters counter array
+     * @param ofs      counter offset
      */
-    private short addPadding(byte[] data, short offset, short length) {
-        data[(short) (offset + length++)] = (byte) 0x80;
-        while (length < 16 || (length % 16 != 0)) {
-            data[(short) (offset + length++)] = 0x00;
+    private void increment(byte[] counters, short ofs) {
+        Util.arrayCopyNonAtomic(counters, ofs, counterBuffer, (short) 0, COUNTER_SIZE);
+        short i = (short) (COUNTER_SIZE - 1);
+        while (i >= 0 && counterBuffer[i] == (byte) 0xFF) {
+            counterBuffer[i--] = 0;
         }
-        return length;
+        if (i < 0)
+            return;
+        counterBuffer[i]++;
+        Util.arrayCopyNonAtomic(counterBuffer, (short) 0, counters, ofs, COUNTER_SIZE);
     }
 
     /**
-     * remove padding from decrypted result.
+     * Send non zero counters : instruction counters (instruction followed by 4 bytes count, 00 for other instructions)
+     * then status word counters (status word followed by 4 bytes count, 0000 for other status words). Counters are
+     * cleared after being read if P1 is P1_RESET_COUNTERS. The current command is not counted yet.
      *
-     * @param buffer
-     * @param length
-     * @return
+     * @param len data length
      */
-    private short removePadding(byte[] buffer, short length) {
-        while ((length != 0) && buffer[(short) (length - 1)] == (byte) 0x00) {
-            length--;
+    private void sendCounters(short len) {
+        APDU apdu = APDU.getCurrentAPDU();
+        byte[] buffer = APDU.getCurrentAPDUBuffer();
+
+        if (len != 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        boolean reset = buffer[ISO7816.OFFSET_P1] == P1_RESET_COUNTERS;
+
+        short offset = 2;
+        for (short i = 0; i <= COUNTED_INS.length; i++) {
+            short ofs = (short) (i * COUNTER_SIZE);
+            if (isCounterSet(insCounters, ofs)) {
+                buffer[offset++] = (i < COUNTED_INS.length) ? COUNTED_INS[i] : 0;
+                offset = Util.arrayCopyNonAtomic(insCounters, ofs, buffer, offset, COUNTER_SIZE);
+            }
         }
-        if (buffer[(short) (length - 1)] != (byte) 0x80) {
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        buffer[0] = TAG_INS_COUNTERS;
+        buffer[1] = (byte) (offset - 2);
+
+        short swOffset = offset;
+        offset += 2;
+        for (short i = 0; i <= COUNTED_SW.length; i++) {
+            short ofs = (short) (i * COUNTER_SIZE);
+            if (isCounterSet(swCounters, ofs)) {
+                offset = Util.setShort(buffer, offset, (i < COUNTED_SW.length) ? COUNTED_SW[i] : 0);
+                offset = Util.arrayCopyNonAtomic(swCounters, ofs, buffer, offset, COUNTER_SIZE);
+            }
         }
-        length--;
-        return length;
+        buffer[swOffset] = TAG_SW_COUNTERS;
+        buffer[(short) (swOffset + 1)] = (byte) (offset - swOffset - 2);
+
+        if (reset) {
+            Util.arrayFillNonAtomic(insCounters, (short) 0, (short) insCounters.length, (byte) 0);
+            Util.arrayFillNonAtomic(swCounters, (short) 0, (short) swCounters.length, (byte) 0);
+        }
+        apdu.setOutgoingAndSend((short) 0, offset);
+    }
+
+    private boolean isCounterSet(byte[] counters, short ofs) {
+        return Util.getShort(counters, ofs) != 0 || Util.getShort(counters, (short) (ofs + 2)) != 0;
     }
 
     /**
-     * Check TAG Length Value.
-     *
-     * @param buffer
-     * @param inOfs
-     * @param tag
-     * @param maxLen
-     * @return
+     * Set working mode.
      */
-    short checkTLV(byte[] buffer, short inOfs, byte tag, short maxLen) {
-        if (buffer[inOfs++] != tag)
+    private void setMode() {
+        byte[] buffer = APDU.getCurrentAPDUBuffer();
+
+        if ((short) (buffer[ISO7816.OFFSET_LC] & 0xFF) != 1)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        short len = buffer[inOfs++];
-        if (len > maxLen)
+
+        if (buffer[ISO7816.OFFSET_CDATA] != MODE_APP_STORAGE && buffer[ISO7816.OFFSET_CDATA] != MODE_SIM_STORAGE) {
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        return (short) (inOfs + len);
+        }
+        mode = buffer[ISO7816.OFFSET_CDATA];
     }
 
-    void processAddPasswordEntry() {
-        byte[] buf = APDU.getCurrentAPDUBuffer();
+    /**
+     * Encrypt data in place in the APDU buffer or in the work buffer if it doesn't fit.
+     *
+     * @param apdu     APDU
+     * @param received data length already received
+     */
+    private void encrypt(APDU apdu, short received) {
+        short length = apdu.getIncomingLength();
 
-        if ((short) (buf[ISO7816.OFFSET_LC] & 0xFF) < 3)
+        if (length < 1)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        if (length > MAX_DATA_SIZE)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-        short ofsId = ISO7816.OFFSET_CDATA;
-        short ofsUserName = checkTLV(buf, ofsId, TAG_IDENTIFIER, PasswordEntry.SIZE_ID);
-
-        if (buf[ISO7816.OFFSET_LC] < (short) (ofsUserName - 3))
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        byte[] data = receiveData(apdu, received);
+        short offset = (data == workBuffer) ? 0 : apdu.getOffsetCdata();
+        sendData(apdu, data, offset, encrypt(data, offset, length));
+    }
 
-        short ofsPassword = checkTLV(buf, ofsUserName, TAG_USERNAME, PasswordEntry.SIZE_USERNAME);
+    /**
+     * Decrypt data in place in the APDU buffer or in the work buffer if it doesn't fit.
+     *
+     * @param apdu     APDU
+     * @param received data length already received
+     */
+    private void decrypt(APDU apdu, short received) {
+        short length = apdu.getIncomingLength();
 
-        if (buf[ISO7816.OFFSET_LC] < (short) (ofsPassword - 3))
+        if (length < 1)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-
-        if (checkTLV(buf, ofsPassword, TAG_PASSWORD, PasswordEntry.SIZE_PASSWORD) !=
-                (short) (ISO7816.OFFSET_CDATA + (short) (buf[ISO7816.OFFSET_LC] & 0xFF)))
+        if (length > (short) (MAX_DATA_SIZE + AES_BLOCK_SIZE))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        if ((length % AES_BLOCK_SIZE) != 0)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
-        if (PasswordEntry.search(buf, (short) (ofsId + 2), buf[(short) (ofsId + 1)]) != null)
-            ISOException.throwIt(SW_DUPLICATE_IDENTIFIER);
-
-        JCSystem.beginTransaction();
-        PasswordEntry pe = PasswordEntry.getInstance();
-        pe.setId(buf, (short) (ofsId + 2), buf[(short) (ofsId + 1)]);
-        pe.setUserName(buf, (short) (ofsUserName + 2), buf[(short) (ofsUserName + 1)]);
-
-        aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
-        short newLength = addPadding(buf, (short) (ofsPassword + 2), buf[(short) (ofsPassword + 1)]);
-        byte[] temp = JCSystem.makeTransientByteArray(newLength, JCSystem.CLEAR_ON_DESELECT);
-        aesCipher.doFinal(buf, (short) (ofsPassword + 2), newLength, temp, (short) 0x00);
-        pe.setPassword(temp, (short) 0x00, (byte) newLength);
-
-        JCSystem.commitTransaction();
+        byte[] data = receiveData(apdu, received);
+        short offset = (data == workBuffer) ? 0 : apdu.getOffsetCdata();
+        sendData(apdu, data, offset, decrypt(data, offset, length));
     }
 
-    void processDeletePasswordEntry() {
-        byte[] buf = APDU.getCurrentAPDUBuffer();
+    /**
+     * Encrypt a list of length prefixed items, each result is length prefixed. Data is moved at the end of the work
+     * buffer so that results which are larger than their input can be written from the start.
+     *
+     * @param apdu     APDU
+     * @param received data length already received
+     */
+    private void encryptAll(APDU apdu, short received) {
+        short length = apdu.getIncomingLength();
 
-        if ((short) (buf[ISO7816.OFFSET_LC] & 0xFF) < 3)
+        if (length < 1)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        if (length > MAX_DATA_SIZE)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        byte[] data = receiveData(apdu, received);
+        short inOfs = (data == workBuffer) ? 0 : apdu.getOffsetCdata();
+        short end = (short) (inOfs + length);
+        short outLength = 0;
 
-        short ofsId = ISO7816.OFFSET_CDATA;
-        if (checkTLV(buf, ISO7816.OFFSET_CDATA, TAG_IDENTIFIER, PasswordEntry.SIZE_ID) !=
-                (short) (ISO7816.OFFSET_CDATA + (short) (buf[ISO7816.OFFSET_LC] & 0xFF)))
+        while (inOfs < end) {
+            short itemLength = (short) (data[inOfs] & 0xFF);
+            if (itemLength > (short) (MAX_ITEM_SIZE - AES_BLOCK_SIZE))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            inOfs += (short) (1 + itemLength);
+            outLength += (short) (1 + AES_BLOCK_SIZE + itemLength - (short) (itemLength % AES_BLOCK_SIZE));
+        }
+        if (inOfs != end)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        if (outLength > (short) workBuffer.length)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-        PasswordEntry pe = PasswordEntry.search(buf,
-                (short) (ISO7816.OFFSET_CDATA + 2),
-                buf[ISO7816.OFFSET_CDATA + 1]);
-        if (pe == null)
-            ISOException.throwIt(SW_IDENTIFIER_NOT_FOUND);
+        inOfs = (short) (workBuffer.length - length);
+        Util.arrayCopyNonAtomic(data, (short) (end - length), workBuffer, inOfs, length);
 
-        PasswordEntry.delete(buf, (short) (ofsId + 2), buf[(short) (ofsId + 1)]);
+        short outOfs = 0;
+        while (inOfs < (short) workBuffer.length) {
+            short itemLength = (short) (workBuffer[inOfs] & 0xFF);
+            Util.arrayCopyNonAtomic(workBuffer, (short) (inOfs + 1), workBuffer, (short) (outOfs + 1), itemLength);
+            inOfs += (short) (1 + itemLength);
+            itemLength = encrypt(workBuffer, (short) (outOfs + 1), itemLength);
+            workBuffer[outOfs] = (byte) itemLength;
+            outOfs += (short) (1 + itemLength);
+        }
+        sendData(apdu, workBuffer, (short) 0, outOfs);
     }
 
-    void processEditPasswordEntry() {
-        byte[] buf = APDU.getCurrentAPDUBuffer();
+    /**
+     * Decrypt a list of length prefixed items in place, each result is length prefixed.
+     *
+     * @param apdu     APDU
+     * @param received data length already received
+     */
+    private void decryptAll(APDU apdu, short received) {
+        short length = apdu.getIncomingLength();
 
-        if ((short) (buf[ISO7816.OFFSET_LC] & 0xFF) < 3)
+        if (length < 1)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        if (length > (short) (MAX_DATA_SIZE + AES_BLOCK_SIZE))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-        short ofsOldId = ISO7816.OFFSET_CDATA;
-
-        short ofsId = checkTLV(buf, ofsOldId, TAG_OLD_IDENTIFIER, PasswordEntry.SIZE_ID);
+        byte[] data = receiveData(apdu, received);
+        short offset = (data == workBuffer) ? 0 : apdu.getOffsetCdata();
+        short end = (short) (offset + length);
+        short inOfs = offset;
 
-        if (buf[ISO7816.OFFSET_LC] < (short) (ofsId - 3))
+        while (inOfs < end) {
+            short itemLength = (short) (data[inOfs] & 0xFF);
+            if (itemLength == 0 || (itemLength % AES_BLOCK_SIZE) != 0)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            inOfs += (short) (1 + itemLength);
+        }
+        if (inOfs != end)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
-        short ofsUserName = checkTLV(buf, ofsId, TAG_IDENTIFIER, PasswordEntry.SIZE_ID);
-
-        if (buf[ISO7816.OFFSET_LC] < (short) (ofsUserName - 3))
+        inOfs = offset;
+        short outOfs = offset;
+        while (inOfs < end) {
+            short itemLength = (short) (data[inOfs] & 0xFF);
+            short clearLength = decrypt(data, (short) (inOfs + 1), itemLength);
+            data[outOfs] = (byte) clearLength;
+            Util.arrayCopyNonAtomic(data, (short) (inOfs + 1), data, (short) (outOfs + 1), clearLength);
+            inOfs += (short) (1 + itemLength);
+            outOfs += (short) (1 + clearLength);
+        }
+        sendData(apdu, data, offset, (short) (outOfs - offset));
+    }
+
+    /**
+     * Receive all incoming data. Data stays in the APDU buffer if it fits with room for padding, otherwise it is
+     * copied to the work buffer at offset 0.
+     *
+     * @param apdu     APDU
+     * @param received data length already received
+     * @return buffer holding the data
+     */
+    private byte[] receiveData(APDU apdu, short received) {
+        byte[] buffer = apdu.getBuffer();
+        short offset = apdu.getOffsetCdata();
+        short length = apdu.getIncomingLength();
+
+        if ((short) (offset + length + AES_BLOCK_SIZE) <= buffer.length) {
+            while (received < length) {
+                received += apdu.receiveBytes((short) (offset + received));
+            }
+            return buffer;
+        }
+        Util.arrayCopyNonAtomic(buffer, offset, workBuffer, (short) 0, received);
+        while (received < length) {
+            short read = apdu.receiveBytes(offset);
+            Util.arrayCopyNonAtomic(buffer, offset, workBuffer, received, read);
+            received += read;
+        }
+        return workBuffer;
+    }
+
+    /**
+     * Send response data from the APDU buffer or from the work buffer. Work buffer data exceeding the expected length
+     * is kept for GET RESPONSE and 61xx is returned.
+     *
+     * @param apdu   APDU
+     * @param data   buffer holding the data
+     * @param offset data offset
+     * @param length data length
+     */
+    private void sendData(APDU apdu, byte[] data, short offset, short length) {
+        if (data != workBuffer) {
+            apdu.setOutgoingAndSend(offset, length);
+            return;
+        }
+        //Ne of 65536 doesn't fit in a short and is reported as 0
+        boolean extended = apdu.getOffsetCdata() == ISO7816.OFFSET_EXT_CDATA;
+        short max = apdu.setOutgoing();
+        if (max == 0)
+            max = extended ? (short) 0x7FFF : MAX_RESPONSE_SIZE;
+        short count = (length > max) ? max : length;
+
+        apdu.setOutgoingLength(count);
+        apdu.sendBytesLong(workBuffer, offset, count);
+
+        if (count < length) {
+            length -= count;
+            pendingResponse[PENDING_TYPE] = PENDING_DATA;
+            pendingResponse[PENDING_OFFSET] = (short) (offset + count);
+            pendingResponse[PENDING_LENGTH] = length;
+            if (length > MAX_RESPONSE_SIZE)
+                length = MAX_RESPONSE_SIZE;
+            ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | (short) (length & 0xFF)));
+        }
+    }
+
+    /**
+     * Pad and encrypt data in place. The buffer must have room for up to 16 bytes of padding after the data.
+     *
+     * @param buffer data buffer
+     * @param offset data offset
+     * @param length data length
+     * @return encrypted data length
+     */
+    private short encrypt(byte[] buffer, short offset, short length) {
+        if (!cipherReady[CIPHER_ENCRYPT]) {
+            encryptCipher.init(aesKey, Cipher.MODE_ENCRYPT);
+            cipherReady[CIPHER_ENCRYPT] = true;
+            cipherInitCount[0]++;
+        }
+        if (nativePadding)
+            return encryptCipher.doFinal(buffer, offset, length, buffer, offset);
+        short newLength = addPadding(buffer, offset, length);
+        return encryptCipher.doFinal(buffer, offset, newLength, buffer, offset);
+    }
+
+    /**
+     * Decrypt data in place and remove padding.
+     *
+     * @param buffer data buffer
+     * @param offset data offset
+     * @param length encrypted data length
+     * @return clear text data length
+     */
+    private short decrypt(byte[] buffer, short offset, short length) {
+        if (!cipherReady[CIPHER_DECRYPT]) {
+            decryptCipher.init(aesKey, Cipher.MODE_DECRYPT);
+            cipherReady[CIPHER_DECRYPT] = true;
+            cipherInitCount[0]++;
+        }
+        if (nativePadding) {
+            try {
+                return decryptCipher.doFinal(buffer, offset, length, buffer, offset);
+            } catch (CryptoException e) {
+                cipherReady[CIPHER_DECRYPT] = false;
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+        }
+        decryptCipher.doFinal(buffer, offset, length, buffer, offset);
+        return removePadding(buffer, offset, length);
+    }
+
+    /**
+     * Add padding for AES encryption.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     */
+    private short addPadding(byte[] data, short offset, short length) {
+        data[(short) (offset + length++)] = (byte) 0x80;
+        while (length < AES_BLOCK_SIZE || (length % AES_BLOCK_SIZE != 0)) {
+            data[(short) (offset + length++)] = 0x00;
+        }
+        return length;
+    }
+
+    /**
+     * remove padding from decrypted result.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return
+     */
+    private short removePadding(byte[] buffer, short offset, short length) {
+        while ((length != 0) && buffer[(short) (offset + length - 1)] == (byte) 0x00) {
+            length--;
+        }
+        if (length == 0 || buffer[(short) (offset + length - 1)] != (byte) 0x80) {
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        length--;
+        return length;
+    }
+
+    /**
+     * Check TAG Length Value.
+     *
+     * @param buffer
+     * @param inOfs
+     * @param end    end of data
+     * @param tag
+     * @param maxLen
+     * @return offset following the value
+     */
+    short checkTLV(byte[] buffer, short inOfs, short end, byte tag, short maxLen) {
+        if ((short) (inOfs + 2) > end || buffer[inOfs++] != tag)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short len = (short) (buffer[inOfs++] & 0xFF);
+        if (len > maxLen || (short) (inOfs + len) > end)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        return (short) (inOfs + len);
+    }
+
+    /**
+     * Get offset following a TLV which has already been checked.
+     *
+     * @param buffer
+     * @param inOfs
+     * @return offset following the value
+     */
+    private short skipTLV(byte[] buffer, short inOfs) {
+        return (short) (inOfs + 2 + (short) (buffer[(short) (inOfs + 1)] & 0xFF));
+    }
+
+    /**
+     * Check a TLV which may be absent.
+     *
+     * @param buffer buffer holding the data
+     * @param inOfs  TLV offset
+     * @param end    data end offset
+     * @param tag    expected tag
+     * @param maxLen maximum value length
+     * @return offset following the value or inOfs if the TLV is absent
+     */
+    private short checkOptionalTLV(byte[] buffer, short inOfs, short end, byte tag, short maxLen) {
+        if (!hasTLV(buffer, inOfs, end, tag))
+            return inOfs;
+        return checkTLV(buffer, inOfs, end, tag, maxLen);
+    }
+
+    private boolean hasTLV(byte[] buffer, short inOfs, short end, byte tag) {
+        return inOfs < end && buffer[inOfs] == tag;
+    }
+
+    /**
+     * Check the TLV designating an entry, either an identifier or the handle returned when the entry was added.
+     *
+     * @param buffer buffer holding the data
+     * @param inOfs  TLV offset
+     * @param end    data end offset
+     * @param tag    expected identifier tag
+     * @return offset following the value
+     */
+    private short checkKey(byte[] buffer, short inOfs, short end, byte tag) {
+        if (inOfs < end && buffer[inOfs] == TAG_HANDLE) {
+            short ofs = checkTLV(buffer, inOfs, end, TAG_HANDLE, HANDLE_SIZE);
+            if (buffer[(short) (inOfs + 1)] != HANDLE_SIZE)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            return ofs;
+        }
+        return checkTLV(buffer, inOfs, end, tag, PasswordEntry.SIZE_ID);
+    }
+
+    /**
+     * Find the entry designated by a checked identifier or handle TLV.
+     *
+     * @param buffer buffer holding the data
+     * @param inOfs  TLV offset
+     * @return entry or null if not found
+     */
+    private PasswordEntry findEntry(byte[] buffer, short inOfs) {
+        if (buffer[inOfs] == TAG_HANDLE)
+            return PasswordEntry.getByHandle(Util.getShort(buffer, (short) (inOfs + 2)));
+        return PasswordEntry.search(buffer, (short) (inOfs + 2), buffer[(short) (inOfs + 1)]);
+    }
+
+    private void resetChain() {
+        chain[CHAIN_INS] = 0;
+        chain[CHAIN_LENGTH] = 0;
+    }
+
+    /**
+     * Check if an instruction is an encrypt/decrypt command, which accepts extended length data.
+     *
+     * @param ins instruction
+     * @return true for encrypt/decrypt instructions
+     */
+    private boolean isCipherCommand(byte ins) {
+        return ins == INS_ENCRYPT || ins == INS_DECRYPT || ins == INS_ENCRYPT_ALL || ins == INS_DECRYPT_ALL;
+    }
+
+    /**
+     * Check if an instruction accepts data split across several APDU.
+     *
+     * @param ins instruction
+     * @return true if command chaining is supported
+     */
+    private boolean isChainable(byte ins) {
+        return ins == INS_ADD_PASSWORD || ins == INS_ADD_PASSWORDS || ins == INS_EDIT_PASSWORD ||
+                ins == INS_RETRIEVE_PASSWORDS || ins == INS_IMPORT_PASSWORDS;
+    }
+
+    /**
+     * Process a command which data may be split across several APDU. Blocks sent with P1_MORE_BLOCKS are staged in the
+     * work buffer, the whole data is processed when the last block is received.
+     *
+     * @param len data length of this block
+     */
+    private void processChainedCommand(short len) {
+        byte[] buffer = APDU.getCurrentAPDUBuffer();
+        byte ins = buffer[ISO7816.OFFSET_INS];
+        short staged = chain[CHAIN_LENGTH];
+
+        if (chain[CHAIN_INS] == 0 && buffer[ISO7816.OFFSET_P1] == 0) {
+            processCommandData(ins, buffer, ISO7816.OFFSET_CDATA, len);
+            return;
+        }
+        if ((short) (staged + len) > MAX_DATA_SIZE) {
+            resetChain();
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, workBuffer, staged, len);
+        staged += len;
+
+        if (buffer[ISO7816.OFFSET_P1] == P1_MORE_BLOCKS) {
+            chain[CHAIN_INS] = ins;
+            chain[CHAIN_LENGTH] = staged;
+            return;
+        }
+        resetChain();
+        processCommandData(ins, workBuffer, (short) 0, staged);
+    }
+
+    /**
+     * Process the complete data of a command that supports chaining.
+     *
+     * @param ins instruction
+     * @param buf buffer holding the data
+     * @param ofs data offset
+     * @param len data length
+     */
+    private void processCommandData(byte ins, byte[] buf, short ofs, short len) {
+        switch (ins) {
+            case INS_ADD_PASSWORD:
+                processAddPasswordEntry(buf, ofs, len);
+                break;
+            case INS_ADD_PASSWORDS:
+                processAddPasswordEntries(buf, ofs, len, false);
+                break;
+            case INS_IMPORT_PASSWORDS:
+                processAddPasswordEntries(buf, ofs, len, true);
+                break;
+            case INS_EDIT_PASSWORD:
+                processEditPasswordEntry(buf, ofs, len);
+                break;
+            case INS_RETRIEVE_PASSWORDS:
+                processRetrievePasswordEntries(buf, ofs, len);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /**
+     * Check an identifier/username/password TLV triple.
+     *
+     * @param buf       buffer holding the data
+     * @param ofs       offset of the identifier TLV
+     * @param end       end of data
+     * @param encrypted true if the password is already encrypted with the card key
+     * @return offset following the password TLV
+     */
+    private short checkEntry(byte[] buf, short ofs, short end, boolean encrypted) {
+        ofs = checkTLV(buf, ofs, end, TAG_IDENTIFIER, PasswordEntry.SIZE_ID);
+        ofs = checkTLV(buf, ofs, end, TAG_USERNAME, PasswordEntry.SIZE_USERNAME);
+        if (!encrypted)
+            return checkTLV(buf, ofs, end, TAG_PASSWORD, PasswordEntry.SIZE_PASSWORD);
+
+        short passwordLength = (short) (buf[(short) (ofs + 1)] & 0xFF);
+        ofs = checkTLV(buf, ofs, end, TAG_PASSWORD, (short) (PasswordEntry.SIZE_PASSWORD + AES_BLOCK_SIZE));
+        if (passwordLength == 0 || (passwordLength % AES_BLOCK_SIZE) != 0)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        return ofs;
+    }
+
+    /**
+     * Encrypt a password value and store it in an entry. The value is encrypted in whichever of the APDU buffer or the
+     * work buffer doesn't hold the command data, so that padding never overwrites the following data.
+     *
+     * @param pe          password entry
+     * @param buf         buffer holding the command data
+     * @param ofsPassword offset of the password TLV
+     */
+    private void storePassword(PasswordEntry pe, byte[] buf, short ofsPassword) {
+        byte[] out = (buf == workBuffer) ? APDU.getCurrentAPDUBuffer() : workBuffer;
+        short length = (short) (buf[(short) (ofsPassword + 1)] & 0xFF);
+
+        Util.arrayCopyNonAtomic(buf, (short) (ofsPassword + 2), out, (short) 0, length);
+        short newLength = encrypt(out, (short) 0, length);
+        pe.setPassword(out, (short) 0, (byte) newLength);
+    }
+
+    /**
+     * Add one or more password entries, data is a sequence of identifier/username/password triples. All entries are
+     * checked before any of them is stored so that the whole batch is added or none, all entries are added in a single
+     * transaction which is rejected with 6A84 if the unused commit buffer can't hold it. The handle of each added entry
+     * is sent back in a handle TLV.
+     *
+     * @param buf buffer holding the data
+     * @param ofs data offset
+     * @param len data length
+     */
+    void processAddPasswordEntry(byte[] buf, short ofs, short len) {
+        short end = (short) (ofs + len);
+
+        if (len < 3)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+        short count = 0;
+        //commit buffer left once all entries are added, it stops decreasing when negative so that it can't wrap
+        short commitLeft = JCSystem.getUnusedCommitCapacity();
+        for (short entry = ofs; entry < end; ) {
+            short next = checkEntry(buf, entry, end, false);
+            if (commitLeft >= 0)
+                commitLeft -= getCommitSize(buf, entry, false);
+            //the identifier filter answers without walking a bucket for most new identifiers
+            if (PasswordEntry.search(buf, (short) (entry + 2), buf[(short) (entry + 1)]) != null)
+                ISOException.throwIt(SW_DUPLICATE_IDENTIFIER);
+            for (short other = ofs; other < entry; other = skipTLV(buf, skipTLV(buf, skipTLV(buf, other)))) {
+                if (buf[(short) (other + 1)] == buf[(short) (entry + 1)] &&
+                        Util.arrayCompare(buf, (short) (other + 2), buf, (short) (entry + 2),
+                                (short) (buf[(short) (entry + 1)] & 0xFF)) == 0)
+                    ISOException.throwIt(SW_DUPLICATE_IDENTIFIER);
+            }
+            count++;
+            entry = next;
+        }
+
+        if (PasswordEntry.getFreeEntryCount() < count || commitLeft < 0)
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+        //if the record storage gets full, entries already added are released with journaled writes before the
+        //transaction is aborted : the abort rolls back both the additions and the releases
+        short entry = ofs;
+        JCSystem.beginTransaction();
+        try {
+            while (entry < end) {
+                entry = addEntry(buf, entry, false);
+            }
+        } catch (ISOException e) {
+            for (short added = ofs; added < entry; added = skipTLV(buf, skipTLV(buf, skipTLV(buf, added)))) {
+                PasswordEntry.search(buf, (short) (added + 2), buf[(short) (added + 1)]).release();
+            }
+            JCSystem.abortTransaction();
+            ISOException.throwIt(e.getReason());
+        }
+        JCSystem.commitTransaction();
+
+        //handles are written over the data already processed (4 bytes per entry of at least 6 bytes)
+        short outOfs = ofs;
+        for (entry = ofs; entry < end; ) {
+            PasswordEntry pe = PasswordEntry.search(buf, (short) (entry + 2), buf[(short) (entry + 1)]);
+            entry = skipTLV(buf, skipTLV(buf, skipTLV(buf, entry)));
+            buf[outOfs++] = TAG_HANDLE;
+            buf[outOfs++] = HANDLE_SIZE;
+            outOfs = Util.setShort(buf, outOfs, pe.getHandle());
+        }
+        sendData(APDU.getCurrentAPDU(), buf, ofs, (short) (outOfs - ofs));
+    }
+
+    /**
+     * Add password entries independently, data is a sequence of identifier/username/password triples. Entries are
+     * added in transactions of at most BATCH_TRANSACTION_ENTRIES entries, a new transaction being started earlier if
+     * the commit buffer can't hold the next entry, and a status word is returned for each of them : 9000 if the entry
+     * was added, 6A8A if the identifier already exists or 6A84 if the vault or the commit buffer is full.
+     * <p/>
+     * Imported passwords are already encrypted with the card key (as exported) and are stored as is.
+     *
+     * @param buf       buffer holding the data
+     * @param ofs       data offset
+     * @param len       data length
+     * @param encrypted true if passwords are already encrypted
+     */
+    void processAddPasswordEntries(byte[] buf, short ofs, short len, boolean encrypted) {
+        short end = (short) (ofs + len);
+
+        if (len < 3)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+        for (short entry = ofs; entry < end; ) {
+            entry = checkEntry(buf, entry, end, encrypted);
+        }
+
+        //status words are written over the data already processed (2 bytes per entry of at least 6 bytes)
+        short count = 0;
+        short pending = 0;
+        JCSystem.beginTransaction();
+        for (short entry = ofs; entry < end; count++) {
+            short commitSize = getCommitSize(buf, entry, encrypted);
+            if (pending == BATCH_TRANSACTION_ENTRIES ||
+                    (pending != 0 && JCSystem.getUnusedCommitCapacity() < commitSize)) {
+                JCSystem.commitTransaction();
+                JCSystem.beginTransaction();
+                pending = 0;
+            }
+            short status = ISO7816.SW_NO_ERROR;
+            short next = skipTLV(buf, skipTLV(buf, skipTLV(buf, entry)));
+
+            if (PasswordEntry.search(buf, (short) (entry + 2), buf[(short) (entry + 1)]) != null) {
+                status = SW_DUPLICATE_IDENTIFIER;
+            } else if (JCSystem.getUnusedCommitCapacity() < commitSize) {
+                status = ISO7816.SW_FILE_FULL;
+            } else {
+                pending++;
+                try {
+                    addEntry(buf, entry, encrypted);
+                } catch (ISOException e) {
+                    status = e.getReason();
+                }
+            }
+            Util.setShort(buf, (short) (ofs + (short) (count * 2)), status);
+            entry = next;
+        }
+        JCSystem.commitTransaction();
 
-        short ofsPassword = checkTLV(buf, ofsUserName, TAG_USERNAME, PasswordEntry.SIZE_USERNAME);
+        sendData(APDU.getCurrentAPDU(), buf, ofs, (short) (count * 2));
+    }
+
+    /**
+     * Get the commit buffer usage of adding a checked identifier/username/password triple.
+     *
+     * @param buf       buffer holding the data
+     * @param entry     offset of the identifier TLV
+     * @param encrypted true if the password is already encrypted and is stored as is
+     * @return commit buffer usage in bytes
+     */
+    private short getCommitSize(byte[] buf, short entry, boolean encrypted) {
+        short ofsUserName = skipTLV(buf, entry);
+        short ofsPassword = skipTLV(buf, ofsUserName);
+        short passwordLength = (short) (buf[(short) (ofsPassword + 1)] & 0xFF);
+        if (!encrypted)
+            passwordLength += (short) (AES_BLOCK_SIZE - (short) (passwordLength % AES_BLOCK_SIZE));
+        return PasswordEntry.getCommitSize((short) (3 + (short) (buf[(short) (entry + 1)] & 0xFF) +
+                (short) (buf[(short) (ofsUserName + 1)] & 0xFF) + passwordLength));
+    }
 
-        if (buf[ISO7816.OFFSET_LC] < (short) (ofsPassword - 3))
+    /**
+     * Store a checked identifier/username/password triple in a new entry. The entry is released if the record
+     * storage is full.
+     *
+     * @param buf       buffer holding the data
+     * @param entry     offset of the identifier TLV
+     * @param encrypted true if the password is already encrypted and must be stored as is
+     * @return offset following the password TLV
+     */
+    private short addEntry(byte[] buf, short entry, boolean encrypted) {
+        short ofsUserName = skipTLV(buf, entry);
+        short ofsPassword = skipTLV(buf, ofsUserName);
+
+        PasswordEntry pe = PasswordEntry.getInstance();
+        if (pe == null)
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        try {
+            pe.setId(buf, (short) (entry + 2), buf[(short) (entry + 1)]);
+            pe.setUserName(buf, (short) (ofsUserName + 2), buf[(short) (ofsUserName + 1)]);
+            if (encrypted)
+                pe.setPassword(buf, (short) (ofsPassword + 2), buf[(short) (ofsPassword + 1)]);
+            else
+                storePassword(pe, buf, ofsPassword);
+        } catch (ISOException e) {
+            pe.release();
+            ISOException.throwIt(e.getReason());
+        }
+        return skipTLV(buf, ofsPassword);
+    }
+
+    void processDeletePasswordEntry() {
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+        short end = (short) (ISO7816.OFFSET_CDATA + (short) (buf[ISO7816.OFFSET_LC] & 0xFF));
+
+        if (checkKey(buf, ISO7816.OFFSET_CDATA, end, TAG_IDENTIFIER) != end)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
-        if (checkTLV(buf, ofsPassword, TAG_PASSWORD, PasswordEntry.SIZE_PASSWORD) !=
-                (short) (ISO7816.OFFSET_CDATA + (short) (buf[ISO7816.OFFSET_LC] & 0xFF)))
+        PasswordEntry pe = findEntry(buf, ISO7816.OFFSET_CDATA);
+        if (pe == null)
+            ISOException.throwIt(SW_IDENTIFIER_NOT_FOUND);
+
+        pe.delete();
+    }
+
+    /**
+     * Edit a password entry, data is the former identifier (or the entry handle) followed by the fields to update :
+     * identifier, username and password TLV, each of them optional but in this order. A field is only written if its
+     * value changes.
+     *
+     * @param buf buffer holding the data
+     * @param ofs data offset
+     * @param len data length
+     */
+    void processEditPasswordEntry(byte[] buf, short ofs, short len) {
+        short end = (short) (ofs + len);
+
+        short ofsOldId = ofs;
+        short ofsId = checkKey(buf, ofsOldId, end, TAG_OLD_IDENTIFIER);
+        short ofsUserName = checkOptionalTLV(buf, ofsId, end, TAG_IDENTIFIER, PasswordEntry.SIZE_ID);
+        short ofsPassword = checkOptionalTLV(buf, ofsUserName, end, TAG_USERNAME, PasswordEntry.SIZE_USERNAME);
+        if (checkOptionalTLV(buf, ofsPassword, end, TAG_PASSWORD, PasswordEntry.SIZE_PASSWORD) != end)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
-        PasswordEntry pe = PasswordEntry.search(buf, (short) (ofsOldId + 2), buf[(short) (ofsOldId + 1)]);
+        PasswordEntry pe = findEntry(buf, ofsOldId);
 
         if (pe == null)
             ISOException.throwIt(SW_IDENTIFIER_NOT_FOUND);
 
-        JCSystem.beginTransaction();
-        pe.setId(buf, (short) (ofsId + 2), buf[(short) (ofsId + 1)]);
-        pe.setUserName(buf, (short) (ofsUserName + 2), buf[(short) (ofsUserName + 1)]);
+        boolean updateId = hasTLV(buf, ofsId, end, TAG_IDENTIFIER) &&
+                !pe.isIdEqual(buf, (short) (ofsId + 2), buf[(short) (ofsId + 1)]);
+        boolean updateUserName = hasTLV(buf, ofsUserName, end, TAG_USERNAME) &&
+                !pe.isUserNameEqual(buf, (short) (ofsUserName + 2), buf[(short) (ofsUserName + 1)]);
+
+        //the encryption is deterministic (fixed IV) so that the encrypted value can be compared with the stored one
+        byte[] out = (buf == workBuffer) ? APDU.getCurrentAPDUBuffer() : workBuffer;
+        short passwordLength = 0;
+        boolean updatePassword = false;
+        if (hasTLV(buf, ofsPassword, end, TAG_PASSWORD)) {
+            passwordLength = (short) (buf[(short) (ofsPassword + 1)] & 0xFF);
+            Util.arrayCopyNonAtomic(buf, (short) (ofsPassword + 2), out, (short) 0, passwordLength);
+            passwordLength = encrypt(out, (short) 0, passwordLength);
+            updatePassword = !pe.isPasswordEqual(out, (short) 0, (byte) passwordLength);
+        }
 
-        //store encrypted password
-        aesCipher.init(aesKey, Cipher.MODE_ENCRYPT);
-        short newLength = addPadding(buf, (short) (ofsPassword + 2), buf[(short) (ofsPassword + 1)]);
-        byte[] temp = JCSystem.makeTransientByteArray(newLength, JCSystem.CLEAR_ON_DESELECT);
-        aesCipher.doFinal(buf, (short) (ofsPassword + 2), newLength, temp, (short) 0x00);
-        pe.setPassword(temp, (short) 0x00, (byte) newLength);
+        if (!updateId && !updateUserName && !updatePassword)
+            return;
 
+        JCSystem.beginTransaction();
+        if (updateId)
+            pe.setId(buf, (short) (ofsId + 2), buf[(short) (ofsId + 1)]);
+        if (updateUserName)
+            pe.setUserName(buf, (short) (ofsUserName + 2), buf[(short) (ofsUserName + 1)]);
+        if (updatePassword)
+            pe.setPassword(out, (short) 0, (byte) passwordLength);
         JCSystem.commitTransaction();
+        if (updateId)
+            PasswordEntry.refreshFilter();
     }
 
     void processRetrievePasswordEntry() {
         APDU apdu = APDU.getCurrentAPDU();
         byte[] buf = APDU.getCurrentAPDUBuffer();
 
-        if ((short) (buf[ISO7816.OFFSET_LC] & 0xFF) < 3)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short end = (short) (ISO7816.OFFSET_CDATA + (short) (buf[ISO7816.OFFSET_LC] & 0xFF));
 
-        if (checkTLV(buf, ISO7816.OFFSET_CDATA, TAG_IDENTIFIER, PasswordEntry.SIZE_ID) !=
-                (short) (ISO7816.OFFSET_CDATA + (short) (buf[ISO7816.OFFSET_LC] & 0xFF)))
+        if (checkKey(buf, ISO7816.OFFSET_CDATA, end, TAG_IDENTIFIER) != end)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
-        PasswordEntry pe = PasswordEntry.search(buf, (short) (ISO7816.OFFSET_CDATA + 2), buf[ISO7816.OFFSET_CDATA + 1]);
+        PasswordEntry pe = findEntry(buf, ISO7816.OFFSET_CDATA);
         if (pe == null)
             ISOException.throwIt(SW_IDENTIFIER_NOT_FOUND);
 
-        short outOfs = 0;
+        apdu.setOutgoingAndSend((short) 0, writeUserNamePassword(pe, buf, (short) 0));
+    }
+
+    /**
+     * Write username and decrypted password TLV of an entry. The buffer must have room for the encrypted password.
+     *
+     * @param pe     password entry
+     * @param buf    output buffer
+     * @param outOfs output offset
+     * @return offset following the password TLV
+     */
+    private short writeUserNamePassword(PasswordEntry pe, byte[] buf, short outOfs) {
         buf[outOfs++] = TAG_USERNAME;
         byte len = pe.getUserName(buf, (short) (outOfs + 1));
         buf[outOfs++] = len;
@@ -456,31 +1550,239 @@ public class PasswordWalletApplet extends Applet {
 
         buf[outOfs++] = TAG_PASSWORD;
 
-        aesCipher.init(aesKey, Cipher.MODE_DECRYPT);
-        byte[] temp = JCSystem.makeTransientByteArray((short) pe.getPasswordLength(), JCSystem.CLEAR_ON_DESELECT);
-        aesCipher.doFinal(pe.getPasword(), (short) 0, (short) pe.getPasswordLength(), temp, (short) 0);
-        short newLength = removePadding(temp, (short) pe.getPasswordLength());
-        Util.arrayCopyNonAtomic(temp, (short) 0x00, buf, (short) (outOfs + 1), newLength);
+        short passwordLength = (short) (pe.getPassword(buf, (short) (outOfs + 1)) & 0xFF);
+        short newLength = decrypt(buf, (short) (outOfs + 1), passwordLength);
 
         buf[outOfs++] = (byte) newLength;
-        outOfs += newLength;
+        return (short) (outOfs + newLength);
+    }
 
-        apdu.setOutgoingAndSend((short) 0, outOfs);
+    /**
+     * Retrieve several password entries, data is a sequence of identifier or handle TLV. Each identifier or handle is
+     * sent back followed by username and password TLV if the entry exists or alone if it doesn't.
+     *
+     * @param buf buffer holding the data
+     * @param ofs data offset
+     * @param len data length
+     */
+    void processRetrievePasswordEntries(byte[] buf, short ofs, short len) {
+        short end = (short) (ofs + len);
+
+        if (len < 2)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+        for (short id = ofs; id < end; ) {
+            id = checkKey(buf, id, end, TAG_IDENTIFIER);
+        }
+
+        //identifiers are kept in the work buffer as the response is built in the APDU buffer
+        if (buf != workBuffer)
+            Util.arrayCopyNonAtomic(buf, ofs, workBuffer, (short) 0, len);
+        pendingResponse[PENDING_OFFSET] = 0;
+        pendingResponse[PENDING_LENGTH] = len;
+        sendPasswordEntries();
     }
 
-    void processListIdentifiers() {
+    /**
+     * Send the records of the identifiers remaining in the work buffer. Records which don't fit in the response are
+     * sent with GET RESPONSE, 6100 is returned as the remaining length is only known after decryption.
+     */
+    private void sendPasswordEntries() {
         APDU apdu = APDU.getCurrentAPDU();
         byte[] buf = APDU.getCurrentAPDUBuffer();
 
-        if (buf[ISO7816.OFFSET_P1] == 0)
-            current = PasswordEntry.getFirst();
-        else if ((buf[ISO7816.OFFSET_P1] != 1) || (current == null))
-            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        short max = apdu.setOutgoing();
+        if (max == 0 || max > MAX_RESPONSE_SIZE)
+            max = MAX_RESPONSE_SIZE;
+
+        short id = pendingResponse[PENDING_OFFSET];
+        short end = (short) (id + pendingResponse[PENDING_LENGTH]);
+        short outOfs = 0;
+
+        while (id < end) {
+            short idLength = (short) (workBuffer[(short) (id + 1)] & 0xFF);
+            PasswordEntry pe = findEntry(workBuffer, id);
+
+            short size = (short) (idLength + 2);
+            if (pe != null)
+                size += (short) ((short) (pe.getUserNameLength() & 0xFF) + (short) (pe.getPasswordLength() & 0xFF) + 4);
+
+            if ((short) (outOfs + size) > max) {
+                if (outOfs == 0)
+                    ISOException.throwIt((short) (ISO7816.SW_CORRECT_LENGTH_00 | size));
+                break;
+            }
+            Util.arrayCopyNonAtomic(workBuffer, id, buf, outOfs, (short) (idLength + 2));
+            outOfs += (short) (idLength + 2);
+            if (pe != null)
+                outOfs = writeUserNamePassword(pe, buf, outOfs);
+            id += (short) (idLength + 2);
+        }
+        apdu.setOutgoingLength(outOfs);
+        apdu.sendBytes((short) 0, outOfs);
+
+        if (id < end) {
+            pendingResponse[PENDING_TYPE] = PENDING_RETRIEVE;
+            pendingResponse[PENDING_OFFSET] = id;
+            pendingResponse[PENDING_LENGTH] = (short) (end - id);
+            ISOException.throwIt(ISO7816.SW_BYTES_REMAINING_00);
+        }
+    }
+
+    /**
+     * List identifiers in identifier order (ASCII case ignored) from the first entry or, with a cursor TLV in data, from
+     * a cursor returned by a previous page. An empty cursor TLV starts a resumable listing from the first entry. In a
+     * resumable listing each page which is not the last one ends with the cursor of the next entry, so that the listing
+     * can be resumed with LIST after other commands have discarded the pending response. Entries added after the
+     * listing started may not be listed. A cursor expires if its entry is deleted or renamed since then.
+     *
+     * @param len data length
+     */
+    private void processList(short len) {
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+        byte mode = (buf[ISO7816.OFFSET_P1] == P1_LIST_HANDLES) ? LIST_HANDLES : LIST_IDENTIFIERS;
+
+        current = PasswordEntry.getFirst();
+        if (len != 0) {
+            if (buf[ISO7816.OFFSET_CDATA] != TAG_CURSOR || (short) (buf[ISO7816.OFFSET_CDATA + 1] + 2) != len)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            if (len == (short) (CURSOR_SIZE + 2)) {
+                //the entry was deleted or renamed (and moved in the list) since the cursor was sent
+                current = PasswordEntry.getByHandle(Util.getShort(buf, (short) (ISO7816.OFFSET_CDATA + 2)));
+                if (current == null || current.getMoves() != buf[(short) (ISO7816.OFFSET_CDATA + 2 + HANDLE_SIZE)])
+                    ISOException.throwIt(SW_CURSOR_EXPIRED);
+            } else if (len != 2) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            mode |= LIST_CURSOR;
+        }
+        sendList(mode, (short) 0);
+    }
+
+    /**
+     * Search identifiers starting with a prefix, data is the prefix as an identifier TLV. Matching entries are sent in
+     * list order as identifier and handle TLV, paged with GET RESPONSE. The lookup starts from the list range of the
+     * prefix and stops at the first identifier after the prefix, so that only matching entries and entries differing
+     * by case are read. The prefix is kept in the work buffer for GET RESPONSE.
+     *
+     * @param len data length
+     */
+    private void processSearch(short len) {
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        if (len < 2 || buf[ISO7816.OFFSET_CDATA] != TAG_IDENTIFIER ||
+                (short) ((buf[ISO7816.OFFSET_CDATA + 1] & 0xFF) + 2) != len || (short) (len - 2) > PasswordEntry.SIZE_ID)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+        Util.arrayCopyNonAtomic(buf, (short) (ISO7816.OFFSET_CDATA + 1), workBuffer, (short) 0, (short) (len - 1));
+        current = PasswordEntry.searchPrefix(workBuffer, (short) 1, workBuffer[0]);
+        sendList((buf[ISO7816.OFFSET_P1] == P1_IGNORE_CASE) ? LIST_SEARCH_IGNORE_CASE : LIST_SEARCH, (short) 0);
+    }
+
+    /**
+     * List entries changed since a generation, data is the generation (high and low parts) returned by a previous
+     * listing or 0 to list all entries. The response starts with the current generation followed by the handles of
+     * deleted entries and by the identifier and handle of added or modified entries.
+     *
+     * @param len data length
+     */
+    private void processListChanges(short len) {
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        if (len != 4)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        short high = Util.getShort(buf, ISO7816.OFFSET_CDATA);
+        short low = Util.getShort(buf, (short) (ISO7816.OFFSET_CDATA + 2));
+        if (high < 0 || low < 0)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+        boolean all = high == 0 && low == 0;
+        if (!all && !PasswordEntry.hasChangesSince(high, low))
+            ISOException.throwIt(SW_CHANGES_NOT_AVAILABLE);
 
         short offset = 0;
+        buf[offset++] = TAG_GENERATION;
+        buf[offset++] = 4;
+        offset = PasswordEntry.getGeneration(buf, offset);
+        if (!all) {
+            for (short i = 0; i < PasswordEntry.getTombstoneCount(); i++) {
+                short handle = PasswordEntry.getDeletedHandle(i, high, low);
+                if (handle != -1) {
+                    buf[offset++] = TAG_DELETED_HANDLE;
+                    buf[offset++] = HANDLE_SIZE;
+                    offset = Util.setShort(buf, offset, handle);
+                }
+            }
+        }
+        pendingResponse[PENDING_OFFSET] = high;
+        pendingResponse[PENDING_LENGTH] = low;
+        current = PasswordEntry.getFirst();
+        sendList(LIST_CHANGES, offset);
+    }
+
+    /**
+     * Send the vault generation, the entry count and a digest of the identifiers and handles of all entries in list
+     * order, so that a client can check its cached directory with a single command.
+     *
+     * @param len data length
+     */
+    private void sendDigest(short len) {
+        APDU apdu = APDU.getCurrentAPDU();
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        if (len != 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        short count = 0;
+        directoryDigest.reset();
+        for (PasswordEntry pe = PasswordEntry.getFirst(); pe != null; pe = pe.getNext()) {
+            workBuffer[0] = pe.getId(workBuffer, (short) 1);
+            short ofs = (short) ((workBuffer[0] & 0xFF) + 1);
+            ofs = Util.setShort(workBuffer, ofs, pe.getHandle());
+            directoryDigest.update(workBuffer, (short) 0, ofs);
+            count++;
+        }
+        directoryDigest.doFinal(workBuffer, (short) 0, (short) 0, workBuffer, (short) 0);
+
+        short offset = 0;
+        buf[offset++] = TAG_GENERATION;
+        buf[offset++] = 4;
+        offset = PasswordEntry.getGeneration(buf, offset);
+        buf[offset++] = TAG_ENTRY_COUNT;
+        buf[offset++] = 2;
+        offset = Util.setShort(buf, offset, count);
+        buf[offset++] = TAG_DIGEST;
+        buf[offset++] = (byte) DIGEST_SIZE;
+        offset = Util.arrayCopyNonAtomic(workBuffer, (short) 0, buf, offset, DIGEST_SIZE);
+        apdu.setOutgoingAndSend((short) 0, offset);
+    }
+
+    /**
+     * Send the next identifiers starting from the current entry, each followed by the entry handle except in
+     * LIST_IDENTIFIERS mode, after data already written in the APDU buffer. If all identifiers don't fit in the
+     * response, 61xx is returned with the remaining length and the following identifiers are sent with GET RESPONSE.
+     * With LIST_CURSOR, a partial response ends with the cursor of the next entry.
+     *
+     * @param mode   listing mode
+     * @param offset length of data already written
+     */
+    private void sendList(byte mode, short offset) {
+        APDU apdu = APDU.getCurrentAPDU();
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+        byte pendingMode = mode;
+        boolean cursor = (mode & LIST_CURSOR) != 0;
+        mode &= ~LIST_CURSOR;
+
+        short max = apdu.setOutgoing();
+        if (max == 0 || max > MAX_RESPONSE_SIZE)
+            max = MAX_RESPONSE_SIZE;
+        if (cursor)
+            max -= (short) (CURSOR_SIZE + 2);
+
+        skipUnlisted(mode);
         while (current != null) {
             byte len = current.getIdLength();
-            if ((short) ((short) (offset + len) + 2) > 255)
+            if ((short) (offset + getListSize(current, mode)) > max)
                 break;
 
             buf[offset++] = TAG_IDENTIFIER;
@@ -488,9 +1790,193 @@ public class PasswordWalletApplet extends Applet {
             current.getId(buf, offset);
 
             offset += len;
+            if (mode != LIST_IDENTIFIERS) {
+                buf[offset++] = TAG_HANDLE;
+                buf[offset++] = HANDLE_SIZE;
+                offset = Util.setShort(buf, offset, current.getHandle());
+            }
             current = current.getNext();
+            skipUnlisted(mode);
+        }
+        if (cursor && current != null) {
+            buf[offset++] = TAG_CURSOR;
+            buf[offset++] = CURSOR_SIZE;
+            offset = Util.setShort(buf, offset, current.getHandle());
+            buf[offset++] = current.getMoves();
+        }
+        apdu.setOutgoingLength(offset);
+        apdu.sendBytes((short) 0, offset);
+
+        if (current != null) {
+            pendingResponse[PENDING_TYPE] = PENDING_LIST;
+            pendingResponse[PENDING_MODE] = pendingMode;
+            ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 |
+                    (short) (getRemainingListLength(mode) & 0xFF)));
+        }
+    }
+
+    /**
+     * Move the current entry to the next listed entry : next entry changed since the generation of a change listing or
+     * next entry matching the prefix of a search, the search ends at the first identifier after the prefix.
+     *
+     * @param mode listing mode
+     */
+    private void skipUnlisted(byte mode) {
+        while (current != null && !isListed(current, mode)) {
+            if (isAfterPrefix(current, mode)) {
+                current = null;
+                return;
+            }
+            current = current.getNext();
+        }
+    }
+
+    /**
+     * Check if an entry is part of a listing.
+     *
+     * @param pe   password entry
+     * @param mode listing mode
+     * @return true if the entry is listed
+     */
+    private boolean isListed(PasswordEntry pe, byte mode) {
+        switch (mode) {
+            case LIST_CHANGES:
+                return pe.isChangedSince(pendingResponse[PENDING_OFFSET], pendingResponse[PENDING_LENGTH]);
+            case LIST_SEARCH:
+                return pe.comparePrefix(workBuffer, (short) 1, workBuffer[0]) == 0 &&
+                        pe.hasPrefix(workBuffer, (short) 1, workBuffer[0]);
+            case LIST_SEARCH_IGNORE_CASE:
+                return pe.comparePrefix(workBuffer, (short) 1, workBuffer[0]) == 0;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Check if an entry comes after all identifiers matching the prefix of a search.
+     *
+     * @param pe   password entry
+     * @param mode listing mode
+     * @return true if the search is over
+     */
+    private boolean isAfterPrefix(PasswordEntry pe, byte mode) {
+        return (mode == LIST_SEARCH || mode == LIST_SEARCH_IGNORE_CASE) &&
+                pe.comparePrefix(workBuffer, (short) 1, workBuffer[0]) > 0;
+    }
+
+    /**
+     * Get the length of a listed entry.
+     *
+     * @param pe   password entry
+     * @param mode listing mode
+     * @return length of identifier TLV and handle TLV, 0 for an entry not listed
+     */
+    private short getListSize(PasswordEntry pe, byte mode) {
+        if (!isListed(pe, mode))
+            return 0;
+        short size = (short) ((pe.getIdLength() & 0xFF) + 2);
+        if (mode != LIST_IDENTIFIERS)
+            size += (short) (HANDLE_SIZE + 2);
+        return size;
+    }
+
+    /**
+     * Get the length of the identifiers remaining to be listed, up to the maximum response length (00 in SW2 means
+     * 256 bytes or more).
+     *
+     * @param mode listing mode
+     * @return remaining length
+     */
+    private short getRemainingListLength(byte mode) {
+        short length = 0;
+        for (PasswordEntry pe = current; pe != null && length < MAX_RESPONSE_SIZE && !isAfterPrefix(pe, mode);
+             pe = pe.getNext()) {
+            length += getListSize(pe, mode);
+        }
+        return (length > MAX_RESPONSE_SIZE) ? MAX_RESPONSE_SIZE : length;
+    }
+
+    /**
+     * Send the next entries starting from the current entry, each as identifier, username and password TLV with the
+     * password encrypted under the card key as stored. Entries which don't fit in the response are sent with GET
+     * RESPONSE.
+     */
+    private void sendExportEntries() {
+        APDU apdu = APDU.getCurrentAPDU();
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        short max = apdu.setOutgoing();
+        if (max == 0 || max > MAX_RESPONSE_SIZE)
+            max = MAX_RESPONSE_SIZE;
+
+        short offset = 0;
+        while (current != null) {
+            short size = getExportSize(current);
+            if ((short) (offset + size) > max) {
+                if (offset == 0)
+                    ISOException.throwIt((short) (ISO7816.SW_CORRECT_LENGTH_00 | size));
+                break;
+            }
+            buf[offset++] = TAG_IDENTIFIER;
+            buf[offset] = current.getId(buf, (short) (offset + 1));
+            offset += (short) ((buf[offset] & 0xFF) + 1);
+            buf[offset++] = TAG_USERNAME;
+            buf[offset] = current.getUserName(buf, (short) (offset + 1));
+            offset += (short) ((buf[offset] & 0xFF) + 1);
+            buf[offset++] = TAG_PASSWORD;
+            buf[offset] = current.getPassword(buf, (short) (offset + 1));
+            offset += (short) ((buf[offset] & 0xFF) + 1);
+
+            current = current.getNext();
+        }
+        apdu.setOutgoingLength(offset);
+        apdu.sendBytes((short) 0, offset);
+
+        if (current != null) {
+            pendingResponse[PENDING_TYPE] = PENDING_EXPORT;
+            short length = 0;
+            for (PasswordEntry pe = current; pe != null && length < MAX_RESPONSE_SIZE; pe = pe.getNext()) {
+                length += getExportSize(pe);
+            }
+            ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 |
+                    ((length >= MAX_RESPONSE_SIZE) ? 0 : length)));
+        }
+    }
+
+    /**
+     * Get the length of an exported entry.
+     *
+     * @param pe password entry
+     * @return length of identifier, username and password TLV
+     */
+    private short getExportSize(PasswordEntry pe) {
+        return (short) ((short) (pe.getIdLength() & 0xFF) + (short) (pe.getUserNameLength() & 0xFF) +
+                (short) (pe.getPasswordLength() & 0xFF) + 6);
+    }
+
+    /**
+     * Send remaining response data of the previous command.
+     */
+    void processGetResponse() {
+        short type = pendingResponse[PENDING_TYPE];
+        pendingResponse[PENDING_TYPE] = PENDING_NONE;
+
+        switch (type) {
+            case PENDING_LIST:
+                sendList((byte) pendingResponse[PENDING_MODE], (short) 0);
+                break;
+            case PENDING_DATA:
+                sendData(APDU.getCurrentAPDU(), workBuffer, pendingResponse[PENDING_OFFSET], pendingResponse[PENDING_LENGTH]);
+                break;
+            case PENDING_RETRIEVE:
+                sendPasswordEntries();
+                break;
+            case PENDING_EXPORT:
+                sendExportEntries();
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
-        apdu.setOutgoingAndSend((short) 0, offset);
     }
 
     void processVerify(short len) {
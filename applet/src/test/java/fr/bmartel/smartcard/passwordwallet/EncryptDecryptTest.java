@@ -1,23 +1,37 @@
 package fr.bmartel.smartcard.passwordwallet;
 
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import fr.bmartel.smartcard.passwordwallet.utils.TestUtils;
 import javacard.framework.ISO7816;
+import javacard.security.AESKey;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
 
 public class EncryptDecryptTest extends JavaCardTest {
 
     private final static byte[] DATA16_WITHPADDING = new byte[]{0x01, 0x02};
     private final static byte[] DATA16_NOPADDING = new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F};
     private final static byte[] DATA32_WITHPADDING = new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10, 0x11};
+    private final static int SOAK_APDU_COUNT = 100000;
+    private final static int EXTENDED_DATA_LENGTH = 2000;
+
     private final static byte[] DATA32_NOPADDING = new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E, 0x1F};
 
     @Before
@@ -128,4 +142,242 @@ public class EncryptDecryptTest extends JavaCardTest {
         assertEquals(ISO7816.SW_DATA_INVALID, response.getSW());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void encryptDecryptSoakTest() throws CardException, IllegalAccessException {
+        assumeNotNull(TestSuite.getSimulator());
+        int transientCount = TestUtils.getTransientArrayCount(TestSuite.getSimulator());
+        for (int i = 0; i < SOAK_APDU_COUNT / 2; i++) {
+            encryptDecryptTest(DATA32_NOPADDING, 32);
+        }
+        assertEquals("no transient memory allocated", transientCount, TestUtils.getTransientArrayCount(TestSuite.getSimulator()));
+    }
+
+    @Test
+    public void selectCapabilities() throws Exception {
+        ResponseAPDU response = transmitCommand(new CommandAPDU(AIDUtil.select(TestSuite.APPLET_AID)));
+        assertEquals(0x9000, response.getSW());
+        byte paddingMode = TestUtils.getPaddingMode(TestSuite.getSimulator(), TestSuite.APPLET_AID, response.getData()[6]);
+        assertArrayEquals("max data size and padding mode", TestUtils.concatByteArray(
+                new byte[]{PasswordWalletApplet.TAG_MAX_DATA_SIZE, 0x02},
+                TestUtils.getByte(PasswordWalletApplet.MAX_DATA_SIZE),
+                new byte[]{PasswordWalletApplet.TAG_PADDING_MODE, 0x01, paddingMode}), response.getData());
+    }
+
+    @Test
+    public void encryptDecryptExtended() throws CardException {
+        byte[] data = new byte[EXTENDED_DATA_LENGTH];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        CommandAPDU c = new CommandAPDU(0x90, 0x10, 0x00, 0x00, data, 65536);
+        ResponseAPDU response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        assertEquals("encrypted length", EXTENDED_DATA_LENGTH + 16, response.getData().length);
+
+        c = new CommandAPDU(0x90, 0x11, 0x00, 0x00, response.getData(), 65536);
+        response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals("original decrypted data", data, response.getData());
+    }
+
+    @Test
+    public void encryptExtendedTooLarge() throws CardException {
+        CommandAPDU c = new CommandAPDU(0x90, 0x10, 0x00, 0x00, new byte[PasswordWalletApplet.MAX_DATA_SIZE + 1], 65536);
+        ResponseAPDU response = transmitCommand(c);
+        assertEquals(ISO7816.SW_WRONG_LENGTH, response.getSW());
+    }
+
+    @Test
+    public void extendedLengthNotSupported() throws CardException {
+        CommandAPDU c = new CommandAPDU(0x90, 0x40, 0x00, 0x00, new byte[300]);
+        ResponseAPDU response = transmitCommand(c);
+        assertEquals(ISO7816.SW_WRONG_LENGTH, response.getSW());
+    }
+
+    private static byte[] packItems(byte[]... items) {
+        byte[] data = new byte[]{};
+        for (byte[] item : items) {
+            data = TestUtils.concatByteArray(data, new byte[]{(byte) item.length}, item);
+        }
+        return data;
+    }
+
+    private static byte[][] unpackItems(byte[] data) {
+        int count = 0;
+        for (int i = 0; i < data.length; i += 1 + (data[i] & 0xFF)) {
+            count++;
+        }
+        byte[][] items = new byte[count][];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            int length = data[offset] & 0xFF;
+            items[i] = Arrays.copyOfRange(data, offset + 1, offset + 1 + length);
+            offset += 1 + length;
+        }
+        assertEquals("items length", data.length, offset);
+        return items;
+    }
+
+    @Test
+    public void encryptDecryptAll() throws CardException {
+        byte[][] items = new byte[][]{DATA16_WITHPADDING, DATA16_NOPADDING, DATA32_WITHPADDING, DATA32_NOPADDING};
+
+        CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x12, 0x00, 0x00}, packItems(items)));
+        ResponseAPDU response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        byte[][] encrypted = unpackItems(response.getData());
+        assertEquals("item count", items.length, encrypted.length);
+
+        for (int i = 0; i < items.length; i++) {
+            c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x10, 0x00, 0x00}, items[i]));
+            assertArrayEquals("same result as single encrypt", transmitCommand(c).getData(), encrypted[i]);
+        }
+
+        c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x13, 0x00, 0x00}, response.getData()));
+        response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals("original decrypted data", packItems(items), response.getData());
+    }
+
+    @Test
+    public void encryptDecryptAllExtended() throws CardException {
+        byte[][] items = new byte[100][];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new byte[]{(byte) i, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E};
+        }
+        CommandAPDU c = new CommandAPDU(0x90, 0x12, 0x00, 0x00, packItems(items), 65536);
+        ResponseAPDU response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        assertEquals("encrypted length", items.length * 17, response.getData().length);
+
+        c = new CommandAPDU(0x90, 0x13, 0x00, 0x00, response.getData(), 65536);
+        response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals("original decrypted data", packItems(items), response.getData());
+    }
+
+    @Test
+    public void encryptAllInvalidItems() throws CardException {
+        CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x12, 0x00, 0x00}, new byte[]{0x01, 0x01, 0x03, 0x01}));
+        assertEquals("truncated item", ISO7816.SW_DATA_INVALID, transmitCommand(c).getSW());
+
+        c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x12, 0x00, 0x00}, packItems(new byte[240])));
+        assertEquals("item too large", ISO7816.SW_WRONG_LENGTH, transmitCommand(c).getSW());
+
+        c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x13, 0x00, 0x00}, packItems(new byte[16], new byte[15])));
+        assertEquals("not a block multiple", ISO7816.SW_DATA_INVALID, transmitCommand(c).getSW());
+    }
+
+    @Test
+    public void cipherInitOncePerSession() throws Exception {
+        assumeNotNull(TestSuite.getSimulator());
+        //new session : ciphers are initialized again after selection
+        assertEquals(0x9000, transmitCommand(new CommandAPDU(AIDUtil.select(TestSuite.APPLET_AID))).getSW());
+        verifyPinCode(TestUtils.TEST_PIN_CODE, 0x9000, new byte[]{});
+        encryptDecryptTest(DATA16_WITHPADDING, 16);
+        short[] initCount = (short[]) TestUtils.getAppletField(TestSuite.getSimulator(), TestSuite.APPLET_AID, "cipherInitCount");
+        short count = initCount[0];
+        assertEquals("encrypt and decrypt ciphers initialized", 2, count);
+
+        for (int i = 0; i < 100; i++) {
+            encryptDecryptTest(DATA32_NOPADDING, 32);
+        }
+        CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x12, 0x00, 0x00}, packItems(DATA16_NOPADDING, DATA32_WITHPADDING)));
+        c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x13, 0x00, 0x00}, transmitCommand(c).getData()));
+        assertEquals(0x9000, transmitCommand(c).getSW());
+        assertEquals("no init in steady state", count, initCount[0]);
+    }
+
+    /**
+     * Get a host cipher encrypting with the applet key, without padding.
+     */
+    private static Cipher getHostCipher() throws Exception {
+        byte[] key = new byte[16];
+        ((AESKey) TestUtils.getAppletField(TestSuite.getSimulator(), TestSuite.APPLET_AID, "aesKey")).getKey(key, (short) 0);
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+        return cipher;
+    }
+
+    /**
+     * Software padding : 0x80 followed by zeros up to the next block.
+     */
+    private static byte[] pad(byte[] data) {
+        byte[] padded = Arrays.copyOf(data, (data.length / 16 + 1) * 16);
+        padded[data.length] = (byte) 0x80;
+        return padded;
+    }
+
+    @Test
+    public void paddingCompatibility() throws Exception {
+        assumeNotNull(TestSuite.getSimulator());
+        Cipher cipher = getHostCipher();
+
+        for (byte[] data : new byte[][]{DATA16_WITHPADDING, DATA16_NOPADDING, DATA32_WITHPADDING, DATA32_NOPADDING}) {
+            CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x10, 0x00, 0x00}, data));
+            ResponseAPDU response = transmitCommand(c);
+            assertEquals(0x9000, response.getSW());
+            assertArrayEquals("same ciphertext as software padding", cipher.doFinal(pad(data)), response.getData());
+        }
+
+        CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x11, 0x00, 0x00}, cipher.doFinal(new byte[16])));
+        assertEquals("invalid padding", ISO7816.SW_DATA_INVALID, transmitCommand(c).getSW());
+    }
+
+    @Test
+    public void softwarePadding() throws Exception {
+        CardSimulator simulator = TestSuite.getSimulator();
+        assumeNotNull(simulator);
+        Object encryptCipher = TestUtils.getAppletField(simulator, TestSuite.APPLET_AID, "encryptCipher");
+        Object decryptCipher = TestUtils.getAppletField(simulator, TestSuite.APPLET_AID, "decryptCipher");
+        Object nativePadding = TestUtils.getAppletField(simulator, TestSuite.APPLET_AID, "nativePadding");
+        try {
+            //same ciphers as the constructor fallback when ISO9797 M2 padding is not supported
+            TestUtils.setAppletField(simulator, TestSuite.APPLET_AID, "encryptCipher",
+                    javacardx.crypto.Cipher.getInstance(javacardx.crypto.Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false));
+            TestUtils.setAppletField(simulator, TestSuite.APPLET_AID, "decryptCipher",
+                    javacardx.crypto.Cipher.getInstance(javacardx.crypto.Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false));
+            TestUtils.setAppletField(simulator, TestSuite.APPLET_AID, "nativePadding", false);
+
+            //new session so that the ciphers are initialized again
+            ResponseAPDU response = transmitCommand(new CommandAPDU(AIDUtil.select(TestSuite.APPLET_AID)));
+            assertEquals(0x9000, response.getSW());
+            assertEquals("software padding reported", PasswordWalletApplet.PADDING_SOFTWARE, response.getData()[6]);
+            verifyPinCode(TestUtils.TEST_PIN_CODE, 0x9000, new byte[]{});
+
+            Cipher cipher = getHostCipher();
+            for (int length : new int[]{15, 16, 17}) {
+                byte[] data = Arrays.copyOf(DATA32_NOPADDING, length);
+                CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x10, 0x00, 0x00}, data));
+                response = transmitCommand(c);
+                assertEquals(0x9000, response.getSW());
+                assertArrayEquals("same ciphertext as native padding", cipher.doFinal(pad(data)), response.getData());
+                encryptDecryptTest(data, (length / 16 + 1) * 16);
+            }
+
+            //empty data is only accepted as a batch item
+            CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x12, 0x00, 0x00}, packItems(new byte[0])));
+            response = transmitCommand(c);
+            assertEquals(0x9000, response.getSW());
+            assertArrayEquals("padding block only", packItems(cipher.doFinal(pad(new byte[0]))), response.getData());
+            c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x13, 0x00, 0x00}, response.getData()));
+            response = transmitCommand(c);
+            assertEquals(0x9000, response.getSW());
+            assertArrayEquals("empty decrypted data", packItems(new byte[0]), response.getData());
+
+            //last non zero byte is not the 0x80 marker
+            byte[] badPadding = pad(DATA16_WITHPADDING);
+            badPadding[DATA16_WITHPADDING.length] = 0x01;
+            c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x11, 0x00, 0x00}, cipher.doFinal(badPadding)));
+            assertEquals("invalid padding byte", ISO7816.SW_DATA_INVALID, transmitCommand(c).getSW());
+
+            c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x11, 0x00, 0x00}, cipher.doFinal(new byte[16])));
+            assertEquals("no padding marker", ISO7816.SW_DATA_INVALID, transmitCommand(c).getSW());
+        } finally {
+            TestUtils.setAppletField(simulator, TestSuite.APPLET_AID, "encryptCipher", encryptCipher);
+            TestUtils.setAppletField(simulator, TestSuite.APPLET_AID, "decryptCipher", decryptCipher);
+            TestUtils.setAppletField(simulator, TestSuite.APPLET_AID, "nativePadding", nativePadding);
+            transmitCommand(new CommandAPDU(AIDUtil.select(TestSuite.APPLET_AID)));
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package fr.bmartel.smartcard.passwordwallet;
 
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 
 import fr.bmartel.smartcard.passwordwallet.utils.TestUtils;
 
@@ -31,6 +39,10 @@ public class PasswordEntryTest {
 
     private final static byte[] ID_BASIC4 = new byte[]{0x41, 0x42};
 
+    private final static short CAPACITY = 300;
+
+    private final static short HEAP_SIZE = CAPACITY * 32;
+
     /**
      * Get static field "first" by reflection
      *
@@ -59,6 +71,23 @@ public class PasswordEntryTest {
         return (PasswordEntry) f.get(null);
     }
 
+    /**
+     * Get the number of items available for recycling
+     *
+     * @return free list length
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    private int getDeletedLength() throws NoSuchFieldException, IllegalAccessException {
+        int length = 0;
+        PasswordEntry current = getDeleted();
+        while (current != null) {
+            length++;
+            current = getNext(current);
+        }
+        return length;
+    }
+
     /**
      * Get the next password entry for a specific instance
      *
@@ -75,83 +104,68 @@ public class PasswordEntryTest {
     }
 
     /**
-     * Get id length property by reflection.
+     * Get short property by reflection.
      *
-     * @param entry Password Entry instance
-     * @return id length
+     * @param object object instance or null for static property
+     * @param name   field name
+     * @return short value
      * @throws NoSuchFieldException
      * @throws IllegalAccessException
      */
-    private byte getIdLength(PasswordEntry entry) throws NoSuchFieldException, IllegalAccessException {
-        Field f = TestUtils.getField(entry.getClass(), "idLength");
+    private short getShort(Object object, String name) throws NoSuchFieldException, IllegalAccessException {
+        Field f = TestUtils.getField(PasswordEntry.class, name);
         if (f == null)
             throw new NoSuchFieldException();
-        return f.getByte(entry);
+        return f.getShort(object);
     }
 
     /**
-     * Get username length property by reflection.
+     * Get the record arena by reflection.
      *
-     * @param entry Password entry instance
-     * @return username length
+     * @return record arena
      * @throws NoSuchFieldException
      * @throws IllegalAccessException
      */
-    private byte getUsernameLength(PasswordEntry entry) throws NoSuchFieldException, IllegalAccessException {
-        Field f = TestUtils.getField(entry.getClass(), "userNameLength");
+    private byte[] getHeap() throws NoSuchFieldException, IllegalAccessException {
+        Field f = TestUtils.getField(PasswordEntry.class, "heap");
         if (f == null)
             throw new NoSuchFieldException();
-        return f.getByte(entry);
+        return (byte[]) f.get(null);
     }
 
     /**
-     * Get password length property by reflection.
+     * Get the chunk size of an entry by reflection.
      *
      * @param entry Password entry instance
-     * @return password length
+     * @return chunk size in bytes
      * @throws NoSuchFieldException
      * @throws IllegalAccessException
      */
-    private byte getPasswordLength(PasswordEntry entry) throws NoSuchFieldException, IllegalAccessException {
-        Field f = TestUtils.getField(entry.getClass(), "passwordLength");
-        if (f == null)
-            throw new NoSuchFieldException();
-        return f.getByte(entry);
-    }
-
-    /**
-     * Get byte array property
-     *
-     * @param object Object instance
-     * @param name   field name
-     * @return byte array object matching the specified field name
-     * @throws IllegalAccessException
-     * @throws NoSuchFieldException
-     */
-    private byte[] getByteArray(Object object, String name) throws IllegalAccessException, NoSuchFieldException {
-        Field f = TestUtils.getField(object.getClass(), name);
+    private int getChunkSize(PasswordEntry entry) throws NoSuchFieldException, IllegalAccessException {
+        Field f = TestUtils.getField(PasswordEntry.class, "chunkClass");
         if (f == null)
             throw new NoSuchFieldException();
-        return (byte[]) f.get(object);
+        return 32 << f.getByte(entry);
     }
 
     /**
-     * Check size of byte array properties
+     * Check the record is stored in the smallest chunk able to hold it.
      *
      * @param entry Password entry instance
      * @throws IllegalAccessException
      * @throws NoSuchFieldException
      */
-    private void checkDataSize(PasswordEntry entry) throws IllegalAccessException, NoSuchFieldException {
-        assertNotNull("id array not null", getByteArray(entry, "id"));
-        assertEquals("id array size check", getByteArray(entry, "id").length, PasswordEntry.SIZE_ID);
-        assertNotNull("username array not null", getByteArray(entry, "username"));
-        assertEquals("username array size check", getByteArray(entry, "username").length, PasswordEntry.SIZE_USERNAME);
-        assertNotNull("password array not null", getByteArray(entry, "password"));
-        assertEquals("password array size check", getByteArray(entry, "password").length, PasswordEntry.SIZE_PASSWORD);
+    private void checkDataSize(PasswordEntry entry, byte[] id, byte[] username, byte[] password) throws IllegalAccessException, NoSuchFieldException {
+        int size = 3 + id.length + username.length + password.length;
+        int chunkSize = getChunkSize(entry);
+        assertTrue("record fits in chunk", size <= chunkSize);
+        assertTrue("smallest chunk used", chunkSize == 32 || size > chunkSize / 2);
+        assertTrue("chunk inside arena", getShort(entry, "record") + chunkSize <= getHeap().length);
     }
 
     private void addItem(byte[] id, byte[] username, byte[] password) throws NoSuchFieldException, IllegalAccessException {
+        int freeLength = getDeletedLength();
+
         entry = PasswordEntry.getInstance();
 
         assertNotNull("created instance exist", entry);
@@ -161,7 +175,7 @@ public class PasswordEntryTest {
         assertNotNull("first element exists", firstElement);
         assertEquals("first element is the created element", firstElement, entry);
 
-        assertNull("no item to recycle", getDeleted());
+        assertEquals("item taken from the pool", freeLength - 1, getDeletedLength());
 
         assertEquals("next getter valid", getNext(entry), entry.getNext());
         assertEquals("first getter valid", getFirst(), PasswordEntry.getFirst());
@@ -172,15 +186,16 @@ public class PasswordEntryTest {
         assertEquals("check empty username length", 0, entry.getUserName(new byte[PasswordEntry.SIZE_USERNAME], (short) 0));
         assertEquals("check empty id length", 0, entry.getId(new byte[PasswordEntry.SIZE_ID], (short) 0));
 
-        assertEquals("check password length via reflection", 0, getPasswordLength(entry));
-        assertEquals("check username length via reflection", 0, getUsernameLength(entry));
-        assertEquals("check id length via reflection", 0, getIdLength(entry));
+        short record = getShort(entry, "record");
+        assertEquals("check id length in arena", 0, getHeap()[record]);
+        assertEquals("check username length in arena", 0, getHeap()[record + 1]);
+        assertEquals("check password length in arena", 0, getHeap()[record + 2]);
 
         entry.setId(id, (short) 0, (byte) id.length);
         entry.setUserName(username, (short) 0, (byte) username.length);
         entry.setPassword(password, (short) 0, (byte) password.length);
 
-        checkDataSize(entry);
+        checkDataSize(entry, id, username, password);
     }
 
     private void deleteItem(byte[] id) {
@@ -192,7 +207,7 @@ public class PasswordEntryTest {
         byte[] usernameOut = new byte[expectedUsername.length];
         byte[] idOut = new byte[expectedId.length];
 
-        assertEquals("check password length", expectedPassword.length, entry.getPassword(passwordOut, (short) 0));
+        assertEquals("check password length", expectedPassword.length, entry.getPassword(passwordOut, (short) 0) & 0xFF);
         assertEquals("check username length", expectedUsername.length, entry.getUserName(usernameOut, (short) 0));
         assertEquals("check id length", expectedId.length, entry.getId(idOut, (short) 0));
 
@@ -201,6 +216,121 @@ public class PasswordEntryTest {
         assertArrayEquals("check id data", expectedId, idOut);
     }
 
+    /**
+     * Get an entry reference property by reflection.
+     *
+     * @param entry password entry instance
+     * @param name  field name
+     * @return referenced entry
+     * @throws IllegalAccessException
+     */
+    private PasswordEntry getEntry(PasswordEntry entry, String name) throws IllegalAccessException {
+        return (PasswordEntry) TestUtils.getField(PasswordEntry.class, name).get(entry);
+    }
+
+    /**
+     * Check previous pointers of the entry list and of every bucket match next pointers.
+     *
+     * @throws IllegalAccessException
+     */
+    private void checkLinks() throws IllegalAccessException {
+        PasswordEntry prev = null;
+        int count = 0;
+        for (PasswordEntry pe = PasswordEntry.getFirst(); pe != null; pe = pe.getNext()) {
+            assertEquals("previous entry", prev, getEntry(pe, "prev"));
+            prev = pe;
+            count++;
+        }
+        assertEquals("entry counter", count, PasswordEntry.getEntryCount());
+        int free = 0;
+        for (PasswordEntry pe = (PasswordEntry) TestUtils.getField(PasswordEntry.class, "deleted").get(null); pe != null;
+             pe = getEntry(pe, "next")) {
+            free++;
+        }
+        assertEquals("free entry counter", free, PasswordEntry.getFreeEntryCount());
+        PasswordEntry[] buckets = (PasswordEntry[]) TestUtils.getField(PasswordEntry.class, "buckets").get(null);
+        for (PasswordEntry head : buckets) {
+            prev = null;
+            for (PasswordEntry pe = head; pe != null; pe = getEntry(pe, "nextInBucket")) {
+                assertEquals("previous entry in bucket", prev, getEntry(pe, "prevInBucket"));
+                prev = pe;
+            }
+        }
+        checkSorted();
+    }
+
+    /**
+     * Check the sorted index holds all entries in case insensitive order and each range head is the first entry of its
+     * range.
+     *
+     * @throws IllegalAccessException
+     */
+    private void checkSorted() throws IllegalAccessException {
+        PasswordEntry[] ranges = (PasswordEntry[]) TestUtils.getField(PasswordEntry.class, "ranges").get(null);
+        PasswordEntry[] expectedRanges = new PasswordEntry[ranges.length];
+        PasswordEntry prev = null;
+        String prevId = null;
+        int count = 0;
+        for (PasswordEntry pe = PasswordEntry.getFirst(); pe != null; pe = pe.getNext()) {
+            assertEquals("previous sorted entry", prev, getEntry(pe, "prev"));
+            byte[] id = new byte[pe.getIdLength()];
+            pe.getId(id, (short) 0);
+            String value = foldAscii(new String(id, StandardCharsets.ISO_8859_1));
+            if (prevId != null)
+                assertTrue("sorted order", prevId.compareTo(value) <= 0);
+            int range = (id.length == 0) ? 0 : (value.charAt(0) >> 2);
+            if (expectedRanges[range] == null)
+                expectedRanges[range] = pe;
+            prev = pe;
+            prevId = value;
+            count++;
+        }
+        assertEquals("last sorted entry", prev, TestUtils.getField(PasswordEntry.class, "last").get(null));
+        assertEquals("all entries sorted", getLength(), count);
+        assertArrayEquals("range heads", expectedRanges, ranges);
+    }
+
+    private String foldAscii(String value) {
+        StringBuilder folded = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            folded.append((c >= 'A' && c <= 'Z') ? (char) (c + 0x20) : c);
+        }
+        return folded.toString();
+    }
+
+    /**
+     * Get identifiers matching a prefix ignoring case.
+     *
+     * @param prefix identifier prefix
+     * @return matching identifiers in sorted order
+     */
+    private List<String> searchPrefix(String prefix) {
+        List<String> ids = new ArrayList<>();
+        byte[] value = prefix.getBytes(StandardCharsets.ISO_8859_1);
+        for (PasswordEntry pe = PasswordEntry.searchPrefix(value, (short) 0, (short) value.length);
+             pe != null && pe.comparePrefix(value, (short) 0, (short) value.length) == 0; pe = pe.getNext()) {
+            byte[] id = new byte[pe.getIdLength()];
+            pe.getId(id, (short) 0);
+            ids.add(new String(id, StandardCharsets.ISO_8859_1));
+        }
+        return ids;
+    }
+
+    /**
+     * Get identifiers of the entry list.
+     *
+     * @return identifiers in list order
+     */
+    private byte[][] getIds() {
+        byte[][] ids = new byte[getLength()][];
+        int i = 0;
+        for (PasswordEntry pe = PasswordEntry.getFirst(); pe != null; pe = pe.getNext()) {
+            ids[i] = new byte[pe.getIdLength()];
+            pe.getId(ids[i++], (short) 0);
+        }
+        return ids;
+    }
+
     private int getLength() {
         int length = 0;
         PasswordEntry current = PasswordEntry.getFirst();
@@ -221,8 +351,23 @@ public class PasswordEntryTest {
         if (f == null)
             throw new NoSuchFieldException();
         f.set(null, null);
+        PasswordEntry.init(CAPACITY, HEAP_SIZE);
         assertNull("no first element", getFirst());
-        assertNull("no item to recycle", getDeleted());
+        assertEquals("whole pool to recycle", CAPACITY, getDeletedLength());
+    }
+
+    @AfterClass
+    public static void restorePool() {
+        Field f = TestUtils.getField(PasswordEntry.class, "first");
+        try {
+            f.set(null, null);
+            f = TestUtils.getField(PasswordEntry.class, "deleted");
+            f.set(null, null);
+        } catch (IllegalAccessException e) {
+            fail(e.getMessage());
+        }
+        PasswordEntry.init(PasswordWalletApplet.DEFAULT_CAPACITY,
+                (short) (PasswordWalletApplet.DEFAULT_CAPACITY * PasswordWalletApplet.DEFAULT_RECORD_SIZE));
     }
 
     @Test
@@ -282,10 +427,10 @@ public class PasswordEntryTest {
 
         assertEquals("init length", 4, getLength());
 
-        assertNull("search value check next null (eg first added item)", checkSearchedItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC).getNext());
+        assertNotNull("search value next not null", checkSearchedItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC).getNext());
         assertNotNull("search value next not null", checkSearchedItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1).getNext());
         assertNotNull("search value next not null", checkSearchedItem(ID_BASIC2, USERNAME_BASIC2, PASSWORD_BASIC2).getNext());
-        assertNotNull("search value next not null", checkSearchedItem(ID_BASIC3, USERNAME_BASIC3, PASSWORD_BASIC3).getNext());
+        assertNull("search value check next null (eg greatest identifier)", checkSearchedItem(ID_BASIC3, USERNAME_BASIC3, PASSWORD_BASIC3).getNext());
 
         PasswordEntry searchEntry = PasswordEntry.search(ID_BASIC4, (short) 0, (byte) ID_BASIC4.length);
         assertNull("search value invalid", searchEntry);
@@ -316,10 +461,28 @@ public class PasswordEntryTest {
 
     @Test
     public void checkRecycledItem() throws NoSuchFieldException, IllegalAccessException {
-        assertNull("no item to recycle", getDeleted());
+        assertEquals("whole pool to recycle", CAPACITY, getDeletedLength());
         addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        assertEquals("1 item taken", CAPACITY - 1, getDeletedLength());
         deleteItem(ID_BASIC);
-        assertNotNull("1 item to recycle", getDeleted());
+        assertEquals("item recycled", CAPACITY, getDeletedLength());
+    }
+
+    @Test
+    public void poolExhausted() throws NoSuchFieldException, IllegalAccessException {
+        for (int i = 0; i < CAPACITY; i++) {
+            addItem(TestUtils.getByte(i), USERNAME_BASIC, PASSWORD_BASIC);
+        }
+        assertFalse("no free entry", PasswordEntry.hasFreeEntry());
+        assertNull("pool exhausted", PasswordEntry.getInstance());
+        assertEquals("length after exhaustion", CAPACITY, getLength());
+
+        PasswordEntry removed = PasswordEntry.search(TestUtils.getByte(0), (short) 0, (byte) 2);
+        deleteItem(TestUtils.getByte(0));
+        assertTrue("free entry", PasswordEntry.hasFreeEntry());
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        assertEquals("recycled instance", removed, entry);
+        assertFalse("no free entry", PasswordEntry.hasFreeEntry());
     }
 
     @Test
@@ -332,4 +495,352 @@ public class PasswordEntryTest {
             assertEquals("length after deletion, iteration n°" + i, 0, getLength());
         }
     }
+
+    @Test
+    public void searchAfterRename() throws NoSuchFieldException, IllegalAccessException {
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+
+        PasswordEntry renamed = checkSearchedItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        renamed.setId(ID_BASIC4, (short) 0, (byte) ID_BASIC4.length);
+
+        assertNull("former id not found", PasswordEntry.search(ID_BASIC, (short) 0, (byte) ID_BASIC.length));
+        assertEquals("new id found", renamed, checkSearchedItem(ID_BASIC4, USERNAME_BASIC, PASSWORD_BASIC));
+        checkSearchedItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+    }
+
+    @Test
+    public void sortedIndexTest() throws NoSuchFieldException, IllegalAccessException {
+        String[] ids = {"mail", "Bank", "amazon", "bank-2", "Apple", "zoo", "a", "MAIL", "ban", "~", "0"};
+        for (String id : ids) {
+            byte[] value = id.getBytes(StandardCharsets.ISO_8859_1);
+            addItem(value, USERNAME_BASIC, PASSWORD_BASIC);
+            checkLinks();
+        }
+        assertEquals(Arrays.asList("a", "amazon", "Apple"), searchPrefix("a"));
+        assertEquals(Arrays.asList("Apple"), searchPrefix("aP"));
+        assertEquals(Arrays.asList("ban", "Bank", "bank-2"), searchPrefix("BAN"));
+        assertEquals(Arrays.asList("MAIL", "mail"), searchPrefix("mail"));
+        assertEquals(Arrays.asList(), searchPrefix("mails"));
+        assertEquals(Arrays.asList(), searchPrefix("c"));
+        assertEquals(Arrays.asList("~"), searchPrefix("~"));
+        assertEquals(ids.length, searchPrefix("").size());
+
+        PasswordEntry renamed = PasswordEntry.search("zoo".getBytes(), (short) 0, (byte) 3);
+        renamed.setId("bad".getBytes(), (short) 0, (byte) 3);
+        checkLinks();
+        assertEquals(Arrays.asList("bad", "ban", "Bank", "bank-2"), searchPrefix("ba"));
+
+        deleteItem("a".getBytes());
+        deleteItem("mail".getBytes());
+        checkLinks();
+        assertEquals(Arrays.asList("amazon", "Apple"), searchPrefix("a"));
+        assertEquals(Arrays.asList("MAIL"), searchPrefix("m"));
+    }
+
+    @Test
+    public void searchEmptyId() throws NoSuchFieldException, IllegalAccessException {
+        entry = PasswordEntry.getInstance();
+        assertEquals("empty id found", entry, PasswordEntry.search(ID_BASIC, (short) 0, (byte) 0));
+        entry.setId(ID_BASIC, (short) 0, (byte) ID_BASIC.length);
+        assertNull("empty id not found after set", PasswordEntry.search(ID_BASIC, (short) 0, (byte) 0));
+    }
+
+    @Test
+    public void searchManyEntries() throws NoSuchFieldException, IllegalAccessException {
+        int count = 300;
+        for (int i = 0; i < count; i++) {
+            addItem(TestUtils.getByte(i), USERNAME_BASIC, PASSWORD_BASIC);
+        }
+        assertEquals("length after addition", count, getLength());
+
+        for (int i = 0; i < count; i++) {
+            checkSearchedItem(TestUtils.getByte(i), USERNAME_BASIC, PASSWORD_BASIC);
+        }
+        for (int i = 0; i < count; i += 2) {
+            deleteItem(TestUtils.getByte(i));
+        }
+        assertEquals("length after deletion", count / 2, getLength());
+
+        for (int i = 0; i < count; i++) {
+            byte[] id = TestUtils.getByte(i);
+            if (i % 2 == 0) {
+                assertNull("deleted id not found", PasswordEntry.search(id, (short) 0, (byte) id.length));
+            } else {
+                checkSearchedItem(id, USERNAME_BASIC, PASSWORD_BASIC);
+            }
+        }
+    }
+
+    private void resetPool(short capacity, short heapSize) throws NoSuchFieldException, IllegalAccessException {
+        TestUtils.getField(PasswordEntry.class, "first").set(null, null);
+        TestUtils.getField(PasswordEntry.class, "deleted").set(null, null);
+        PasswordEntry.init(capacity, heapSize);
+    }
+
+    @Test
+    public void usedFreeBytes() throws NoSuchFieldException, IllegalAccessException {
+        assertEquals("nothing used", 0, PasswordEntry.getUsedBytes());
+        assertEquals("whole arena free", HEAP_SIZE, PasswordEntry.getFreeBytes());
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        assertEquals("2 small chunks used", 64, PasswordEntry.getUsedBytes());
+        assertEquals("free after addition", HEAP_SIZE - 64, PasswordEntry.getFreeBytes());
+        deleteItem(ID_BASIC);
+        deleteItem(ID_BASIC1);
+        assertEquals("nothing used after deletion", 0, PasswordEntry.getUsedBytes());
+        assertEquals("whole arena free after deletion", HEAP_SIZE, PasswordEntry.getFreeBytes());
+    }
+
+    @Test
+    public void resizeRecord() throws NoSuchFieldException, IllegalAccessException {
+        byte[] longId = new byte[PasswordEntry.SIZE_ID];
+        byte[] longUsername = new byte[PasswordEntry.SIZE_USERNAME];
+        byte[] longPassword = new byte[PasswordEntry.SIZE_PASSWORD + 16];
+        for (int i = 0; i < longPassword.length; i++) {
+            longPassword[i] = (byte) i;
+        }
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+
+        entry.setPassword(longPassword, (short) 0, (byte) longPassword.length);
+        checkDataSize(entry, ID_BASIC, USERNAME_BASIC, longPassword);
+        checkSearchedItem(ID_BASIC, USERNAME_BASIC, longPassword);
+        assertEquals("password length getter", (byte) longPassword.length, entry.getPasswordLength());
+
+        entry.setUserName(longUsername, (short) 0, (byte) longUsername.length);
+        entry.setId(longId, (short) 0, (byte) longId.length);
+        checkDataSize(entry, longId, longUsername, longPassword);
+        checkSearchedItem(longId, longUsername, longPassword);
+        assertEquals("largest chunk used", 256, getChunkSize(entry));
+
+        entry.setPassword(PASSWORD_BASIC, (short) 0, (byte) PASSWORD_BASIC.length);
+        entry.setUserName(USERNAME_BASIC, (short) 0, (byte) USERNAME_BASIC.length);
+        entry.setId(ID_BASIC, (short) 0, (byte) ID_BASIC.length);
+        checkDataSize(entry, ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        checkSearchedItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        checkSearchedItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        assertEquals("small chunks used after shrink", 64, PasswordEntry.getUsedBytes());
+    }
+
+    @Test
+    public void chunkSplit() throws NoSuchFieldException, IllegalAccessException {
+        resetPool((short) 4, (short) 288);
+        byte[] longPassword = new byte[PasswordEntry.SIZE_PASSWORD];
+
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        entry.setPassword(longPassword, (short) 0, (byte) longPassword.length);
+        assertEquals("largest chunk used", 256, PasswordEntry.getUsedBytes());
+        deleteItem(ID_BASIC);
+
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        addItem(ID_BASIC2, USERNAME_BASIC2, PASSWORD_BASIC2);
+        addItem(ID_BASIC3, USERNAME_BASIC3, PASSWORD_BASIC3);
+        assertEquals("3 small chunks used", 96, PasswordEntry.getUsedBytes());
+        checkSearchedItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        checkSearchedItem(ID_BASIC2, USERNAME_BASIC2, PASSWORD_BASIC2);
+        checkSearchedItem(ID_BASIC3, USERNAME_BASIC3, PASSWORD_BASIC3);
+    }
+
+    @Test
+    public void heapExhausted() throws NoSuchFieldException, IllegalAccessException {
+        resetPool((short) 4, (short) 64);
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        try {
+            PasswordEntry.getInstance();
+            fail("arena exhausted");
+        } catch (ISOException e) {
+            assertEquals(ISO7816.SW_FILE_FULL, e.getReason());
+        }
+        try {
+            entry.setPassword(new byte[PasswordEntry.SIZE_PASSWORD], (short) 0, (byte) PasswordEntry.SIZE_PASSWORD);
+            fail("arena exhausted");
+        } catch (ISOException e) {
+            assertEquals(ISO7816.SW_FILE_FULL, e.getReason());
+        }
+        checkSearchedItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+    }
+
+    @Test
+    public void setIdHeapExhausted() throws NoSuchFieldException, IllegalAccessException {
+        resetPool((short) 4, (short) 64);
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        PasswordEntry pe = PasswordEntry.getInstance();
+        try {
+            pe.setId(new byte[PasswordEntry.SIZE_ID], (short) 0, (byte) PasswordEntry.SIZE_ID);
+            fail("arena exhausted");
+        } catch (ISOException e) {
+            assertEquals(ISO7816.SW_FILE_FULL, e.getReason());
+        }
+        checkLinks();
+        assertEquals("entry linked back", 2, PasswordEntry.getEntryCount());
+
+        //failed entry creation : the entry must be removed from the list only once
+        pe.release();
+        checkLinks();
+        assertEquals("first entry kept", PasswordEntry.search(ID_BASIC, (short) 0, (byte) ID_BASIC.length), PasswordEntry.getFirst());
+        assertNull("single entry left", PasswordEntry.getFirst().getNext());
+        checkSearchedItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+
+        PasswordEntry.deleteAll();
+        checkLinks();
+        assertNull("no entry left", PasswordEntry.getFirst());
+        assertNull("deleted id not found", PasswordEntry.search(ID_BASIC, (short) 0, (byte) ID_BASIC.length));
+        assertEquals("all entries free", 4, PasswordEntry.getFreeEntryCount());
+        assertEquals("nothing used", 0, PasswordEntry.getUsedBytes());
+    }
+
+    private void deletePosition(byte[] deletedId, byte[][] expectedIds) throws NoSuchFieldException, IllegalAccessException {
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        addItem(ID_BASIC2, USERNAME_BASIC2, PASSWORD_BASIC2);
+        checkLinks();
+        deleteItem(deletedId);
+        checkLinks();
+        assertArrayEquals("remaining entries", expectedIds, getIds());
+        assertNull("deleted id not found", PasswordEntry.search(deletedId, (short) 0, (byte) deletedId.length));
+        assertEquals("item recycled", CAPACITY - 2, getDeletedLength());
+    }
+
+    @Test
+    public void deleteHeadTest() throws NoSuchFieldException, IllegalAccessException {
+        deletePosition(ID_BASIC, new byte[][]{ID_BASIC1, ID_BASIC2});
+    }
+
+    @Test
+    public void deleteMiddleTest() throws NoSuchFieldException, IllegalAccessException {
+        deletePosition(ID_BASIC1, new byte[][]{ID_BASIC, ID_BASIC2});
+    }
+
+    @Test
+    public void deleteTailTest() throws NoSuchFieldException, IllegalAccessException {
+        deletePosition(ID_BASIC2, new byte[][]{ID_BASIC, ID_BASIC1});
+    }
+
+    @Test
+    public void deleteAfterReuseTest() throws NoSuchFieldException, IllegalAccessException {
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        PasswordEntry removed = PasswordEntry.search(ID_BASIC, (short) 0, (byte) ID_BASIC.length);
+        deleteItem(ID_BASIC);
+
+        addItem(ID_BASIC2, USERNAME_BASIC2, PASSWORD_BASIC2);
+        assertEquals("recycled instance", removed, entry);
+        addItem(ID_BASIC3, USERNAME_BASIC3, PASSWORD_BASIC3);
+        checkLinks();
+
+        deleteItem(ID_BASIC2);
+        checkLinks();
+        assertArrayEquals("remaining entries", new byte[][]{ID_BASIC1, ID_BASIC3}, getIds());
+        deleteItem(ID_BASIC3);
+        deleteItem(ID_BASIC1);
+        checkLinks();
+        assertEquals("length after deletion", 0, getLength());
+        assertEquals("whole pool to recycle", CAPACITY, getDeletedLength());
+    }
+
+    @Test
+    public void releaseTest() throws NoSuchFieldException, IllegalAccessException {
+        addItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        short tombstoneNext = getShort(null, "tombstoneNext");
+        addItem(ID_BASIC1, USERNAME_BASIC1, PASSWORD_BASIC1);
+        entry.release();
+        checkLinks();
+        assertEquals("no tombstone for a released entry", tombstoneNext, getShort(null, "tombstoneNext"));
+        assertNull("released id not found", PasswordEntry.search(ID_BASIC1, (short) 0, (byte) ID_BASIC1.length));
+        assertEquals("item recycled", CAPACITY - 1, getDeletedLength());
+        deleteItem(ID_BASIC);
+        assertEquals("tombstone for a deleted entry", (tombstoneNext + 1) % PasswordEntry.getTombstoneCount(),
+                getShort(null, "tombstoneNext"));
+    }
+
+    @Test
+    public void deleteSameBucketTest() throws NoSuchFieldException, IllegalAccessException {
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            addItem(TestUtils.getByte(i), USERNAME_BASIC, PASSWORD_BASIC);
+        }
+        //buckets hold several entries, delete from head, middle and tail of bucket chains
+        for (int i = 0; i < count; i += 3) {
+            deleteItem(TestUtils.getByte(i));
+        }
+        checkLinks();
+        for (int i = 0; i < count; i++) {
+            byte[] id = TestUtils.getByte(i);
+            assertEquals("search after deletion", i % 3 != 0, PasswordEntry.search(id, (short) 0, (byte) id.length) != null);
+        }
+    }
+
+    /**
+     * Count the bits set in the identifier filter by reflection.
+     *
+     * @return number of bits set
+     * @throws IllegalAccessException
+     */
+    private int getFilterBitCount() throws IllegalAccessException {
+        int count = 0;
+        for (byte value : (byte[]) TestUtils.getField(PasswordEntry.class, "filter").get(null)) {
+            count += Integer.bitCount(value & 0xFF);
+        }
+        return count;
+    }
+
+    @Test
+    public void filterFalsePositiveTest() throws NoSuchFieldException, IllegalAccessException {
+        int count = 250;
+        for (int i = 0; i < count; i++) {
+            addItem(TestUtils.getByte(i), USERNAME_BASIC, PASSWORD_BASIC);
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] id = TestUtils.getByte(i);
+            assertTrue("stored identifier in filter", PasswordEntry.mayContain(id, (short) 0, (short) id.length));
+        }
+        byte[] falsePositive = null;
+        int falsePositives = 0;
+        for (int i = count; i < count + 4000; i++) {
+            byte[] id = TestUtils.getByte(i);
+            if (PasswordEntry.mayContain(id, (short) 0, (short) id.length)) {
+                falsePositives++;
+                falsePositive = id;
+                assertNull("false positive not found", PasswordEntry.search(id, (short) 0, (byte) id.length));
+            }
+        }
+        assertNotNull("false positive exists", falsePositive);
+        assertTrue("most missing identifiers filtered", falsePositives < 200);
+
+        addItem(falsePositive, USERNAME_BASIC1, PASSWORD_BASIC1);
+        checkSearchedItem(falsePositive, USERNAME_BASIC1, PASSWORD_BASIC1);
+        checkLinks();
+    }
+
+    @Test
+    public void filterRebuildTest() throws NoSuchFieldException, IllegalAccessException {
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            addItem(TestUtils.getByte(i), USERNAME_BASIC, PASSWORD_BASIC);
+        }
+        int bits = getFilterBitCount();
+        assertTrue("2 bits at most per identifier", bits <= 2 * count);
+
+        //bits of the first deleted identifiers are stale until the filter is rebuilt
+        for (int i = 0; i < 7; i++) {
+            deleteItem(TestUtils.getByte(i));
+        }
+        assertEquals("filter not rebuilt", bits, getFilterBitCount());
+        deleteItem(TestUtils.getByte(7));
+        assertTrue("filter rebuilt", getFilterBitCount() <= 2 * (count - 8));
+        for (int i = 0; i < count; i++) {
+            byte[] id = TestUtils.getByte(i);
+            assertEquals("search after rebuild", i >= 8, PasswordEntry.search(id, (short) 0, (byte) id.length) != null);
+        }
+
+        //a renamed identifier is removed from the filter once rebuilt
+        PasswordEntry.search(TestUtils.getByte(8), (short) 0, (byte) 2).setId(ID_BASIC, (short) 0, (byte) ID_BASIC.length);
+        checkSearchedItem(ID_BASIC, USERNAME_BASIC, PASSWORD_BASIC);
+        assertNull("former identifier", PasswordEntry.search(TestUtils.getByte(8), (short) 0, (byte) 2));
+
+        PasswordEntry.deleteAll();
+        assertEquals("empty filter", 0, getFilterBitCount());
+    }
 }
@@ -3,8 +3,13 @@ package fr.bmartel.smartcard.passwordwallet;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
@@ -14,7 +19,11 @@ import fr.bmartel.smartcard.passwordwallet.model.Password;
 import fr.bmartel.smartcard.passwordwallet.utils.TestUtils;
 import javacard.framework.ISO7816;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
 
 public class PasswordManagerTest extends JavaCardTest {
 
@@ -23,6 +32,25 @@ public class PasswordManagerTest extends JavaCardTest {
     private final static byte[] CMD_DELETE_PASSWORD = new byte[]{(byte) 0x90, 0x34, 0x00, 0x00};
     private final static byte[] CMD_LIST_ID = new byte[]{(byte) 0x90, 0x36, 0x00, 0x00};
     private final static byte[] CMD_EDIT_PASSWORD = new byte[]{(byte) 0x90, 0x33, 0x00, 0x00};
+    private final static byte[] CMD_GET_MEMORY = new byte[]{(byte) 0x90, 0x54, 0x00, 0x00};
+    private final static byte[] CMD_GET_RESPONSE = new byte[]{0x00, (byte) 0xC0, 0x00, 0x00};
+    private final static byte[] CMD_ADD_PASSWORD_CHAINED = new byte[]{(byte) 0x90, 0x30, PasswordWalletApplet.P1_MORE_BLOCKS, 0x00};
+    private final static byte[] CMD_ADD_PASSWORDS = new byte[]{(byte) 0x90, 0x31, 0x00, 0x00};
+    private final static byte[] CMD_ADD_PASSWORDS_CHAINED = new byte[]{(byte) 0x90, 0x31, PasswordWalletApplet.P1_MORE_BLOCKS, 0x00};
+    private final static byte[] CMD_GET_PASSWORDS = new byte[]{(byte) 0x90, 0x35, 0x00, 0x00};
+    private final static byte[] CMD_EDIT_PASSWORD_CHAINED = new byte[]{(byte) 0x90, 0x33, PasswordWalletApplet.P1_MORE_BLOCKS, 0x00};
+    private final static byte[] CMD_EXPORT_PASSWORDS = new byte[]{(byte) 0x90, 0x37, 0x00, 0x00};
+    private final static byte[] CMD_IMPORT_PASSWORDS = new byte[]{(byte) 0x90, 0x38, 0x00, 0x00};
+    private final static byte[] CMD_IMPORT_PASSWORDS_CHAINED = new byte[]{(byte) 0x90, 0x38, PasswordWalletApplet.P1_MORE_BLOCKS, 0x00};
+    private final static byte[] CMD_DELETE_PASSWORDS = new byte[]{(byte) 0x90, 0x39, 0x00, 0x00};
+    private final static byte[] CMD_DECRYPT = new byte[]{(byte) 0x90, 0x11, 0x00, 0x00};
+    private final static byte[] CMD_LIST_ID_HANDLES = new byte[]{(byte) 0x90, 0x36, PasswordWalletApplet.P1_LIST_HANDLES, 0x00};
+    private final static byte[] CMD_LIST_CHANGES = new byte[]{(byte) 0x90, 0x3A, 0x00, 0x00};
+    private final static byte[] CMD_GET_DIGEST = new byte[]{(byte) 0x90, 0x3B, 0x00, 0x00};
+    private final static byte[] CMD_SEARCH = new byte[]{(byte) 0x90, 0x3C, 0x00, 0x00};
+    private final static byte[] CMD_SEARCH_IGNORE_CASE = new byte[]{(byte) 0x90, 0x3C, 0x01, 0x00};
+    private final static byte[] CMD_GET_COUNTERS = new byte[]{(byte) 0x90, 0x55, 0x00, 0x00};
+    private final static byte[] CMD_GET_RESET_COUNTERS = new byte[]{(byte) 0x90, 0x55, 0x01, 0x00};
 
     private final static Password DATA_ENTRY_VALID = new Password(
             new byte[]{(byte) 0xF1, 0x04, 0x48, 0x6F, 0x6D, 0x65},
@@ -73,8 +101,23 @@ public class PasswordManagerTest extends JavaCardTest {
     private final static byte[] DATA_ENTRY_USERNAME_OVERFLOW = new byte[]{(byte) 0xF1, 0x04, 0x48, 0x6F, 0x6D, 0x65, (byte) 0xF2, 0x19, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, (byte) 0xF3, 0x04, 0x70, 0x61, 0x73, 0x73};
     private final static byte[] DATA_ENTRY_PASSWORD_OVERFLOW = new byte[]{(byte) 0xF1, 0x04, 0x48, 0x6F, 0x6D, 0x65, (byte) 0xF2, 0x03, 0x62, 0x6F, 0x62, (byte) 0xF3, 0x11, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x11, 0x12};
 
-    private void sendAddPassword(byte[] data, int expectedSw, byte[] expectedResponse) throws CardException {
-        TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORD, data, expectedSw, expectedResponse);
+    /**
+     * Add password entries and check that a handle TLV is returned for each added entry.
+     *
+     * @return handle TLV of added entries
+     */
+    private List<byte[]> sendAddPassword(byte[] data, int expectedSw) throws CardException {
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_ADD_PASSWORD, data)));
+        assertEquals(expectedSw, response.getSW());
+        byte[] resp = response.getData();
+        assertEquals(0, resp.length % 4);
+        List<byte[]> handles = new ArrayList<>();
+        for (int i = 0; i < resp.length; i += 4) {
+            assertEquals(PasswordWalletApplet.TAG_HANDLE, resp[i]);
+            assertEquals(PasswordWalletApplet.HANDLE_SIZE, resp[i + 1]);
+            handles.add(Arrays.copyOfRange(resp, i, i + 4));
+        }
+        return handles;
     }
 
     private void sendEditPassword(byte[] data, int expectedSw, byte[] expectedResponse) throws CardException {
@@ -93,36 +136,90 @@ public class PasswordManagerTest extends JavaCardTest {
         TestUtils.sendCmdBatch(this, CMD_LIST_ID, data, expectedSw, expectedResponse);
     }
 
-    private void deleteAllPassword() throws CardException {
-        CommandAPDU commandAPDU = new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, new byte[]{}));
-        ResponseAPDU response = transmitCommand(commandAPDU);
+    /**
+     * List all identifiers, draining GET RESPONSE while 61xx is returned.
+     *
+     * @param cla GET RESPONSE class
+     * @return concatenated identifiers
+     */
+    private byte[] listAll(byte cla) throws CardException {
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, new byte[]{})));
+        byte[] data = response.getData();
+        while (response.getSW1() == 0x61) {
+            response = transmitCommand(new CommandAPDU(new byte[]{cla, (byte) 0xC0, 0x00, 0x00, (byte) response.getSW2()}));
+            data = TestUtils.concatByteArray(data, response.getData());
+        }
+        assertEquals(0x9000, response.getSW());
+        return data;
+    }
+
+    /**
+     * Export all entries, draining GET RESPONSE while 61xx is returned.
+     *
+     * @return concatenated entries
+     */
+    private byte[] exportAll() throws CardException {
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_EXPORT_PASSWORDS, new byte[]{})));
+        byte[] data = response.getData();
+        while (response.getSW1() == 0x61) {
+            response = transmitCommand(new CommandAPDU(TestUtils.concatByteArray(CMD_GET_RESPONSE, new byte[]{(byte) response.getSW2()})));
+            data = TestUtils.concatByteArray(data, response.getData());
+        }
         assertEquals(0x9000, response.getSW());
-        if (response.getData().length > 0) {
+        return data;
+    }
+
+    /**
+     * List changes since a generation, draining GET RESPONSE while 61xx is returned.
+     *
+     * @param generation generation of a previous listing
+     * @return concatenated response starting with the current generation TLV
+     */
+    private byte[] listChanges(byte[] generation) throws CardException {
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_CHANGES, generation)));
+        byte[] data = response.getData();
+        while (response.getSW1() == 0x61) {
+            response = transmitCommand(new CommandAPDU(TestUtils.concatByteArray(CMD_GET_RESPONSE, new byte[]{(byte) response.getSW2()})));
+            data = TestUtils.concatByteArray(data, response.getData());
+        }
+        assertEquals(0x9000, response.getSW());
+        assertEquals(PasswordWalletApplet.TAG_GENERATION, data[0]);
+        assertEquals(4, data[1]);
+        return data;
+    }
+
+    private static byte[] getGeneration(byte[] changes) {
+        return Arrays.copyOfRange(changes, 2, 6);
+    }
+
+    private void deleteAllPassword() throws CardException {
+        byte[] list = listAll((byte) 0x00);
+        if (list.length > 0) {
             List<byte[]> ids = new ArrayList<>();
             int state = 0;
             int length = 0;
             int index = 0;
             byte[] current = new byte[]{};
 
-            for (int i = 0; i < response.getData().length; i++) {
+            for (int i = 0; i < list.length; i++) {
                 switch (state) {
                     case 0:
-                        if ((response.getData()[i] & 0xFF) == 0xF1) {
+                        if ((list[i] & 0xFF) == 0xF1) {
                             state = 1;
                         }
                         break;
                     case 1:
                         //set length
-                        length = response.getData()[i] & 0xFF;
+                        length = list[i] & 0xFF;
                         current = new byte[length + 2];
                         current[0] = (byte) 0xF1;
-                        current[1] = response.getData()[i];
+                        current[1] = list[i];
                         index = 2;
                         state = 2;
                         break;
                     case 2:
                         //set data
-                        current[index++] = response.getData()[i];
+                        current[index++] = list[i];
                         length--;
                         if (length == 0) {
                             ids.add(current);
@@ -132,6 +229,8 @@ public class PasswordManagerTest extends JavaCardTest {
 
             }
 
+            CommandAPDU commandAPDU;
+            ResponseAPDU response;
             for (int i = 0; i < ids.size(); i++) {
                 commandAPDU = new CommandAPDU(TestUtils.buildApdu(CMD_DELETE_PASSWORD, ids.get(i)));
                 response = transmitCommand(commandAPDU);
@@ -160,27 +259,27 @@ public class PasswordManagerTest extends JavaCardTest {
     @Test
     public void addPasswordTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
     }
 
     @Test
     public void multipleAddPasswordTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID2.getFullApdu(), 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID3.getFullApdu(), 0x9000, new byte[]{});
-        sendListId(new byte[]{}, 0x9000, TestUtils.concatByteArray(DATA_ENTRY_VALID3.getId(),
-                DATA_ENTRY_VALID2.getId(),
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000);
+        sendAddPassword(DATA_ENTRY_VALID2.getFullApdu(), 0x9000);
+        sendAddPassword(DATA_ENTRY_VALID3.getFullApdu(), 0x9000);
+        sendListId(new byte[]{}, 0x9000, TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(),
                 DATA_ENTRY_VALID1.getId(),
-                DATA_ENTRY_VALID.getId()));
+                DATA_ENTRY_VALID2.getId(),
+                DATA_ENTRY_VALID3.getId()));
     }
 
     @Test
     public void editPasswordTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
         sendEditPassword(DATA_EDIT_ENTRY_VALID1.getFullApdu(), 0x9000, new byte[]{});
         sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID1.getId());
@@ -189,7 +288,7 @@ public class PasswordManagerTest extends JavaCardTest {
     @Test
     public void multipleEditPasswordTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendEditPassword(DATA_EDIT_ENTRY_VALID1.getFullApdu(), 0x9000, new byte[]{});
         sendEditPassword(DATA_EDIT_ENTRY_VALID2.getFullApdu(), 0x9000, new byte[]{});
         sendEditPassword(DATA_EDIT_ENTRY_VALID3.getFullApdu(), 0x9000, new byte[]{});
@@ -199,43 +298,43 @@ public class PasswordManagerTest extends JavaCardTest {
     @Test
     public void invalidAddTagTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_INVALID_TAG1, ISO7816.SW_DATA_INVALID, new byte[]{});
-        sendAddPassword(DATA_ENTRY_INVALID_TAG2, ISO7816.SW_DATA_INVALID, new byte[]{});
-        sendAddPassword(DATA_ENTRY_INVALID_TAG3, ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendAddPassword(DATA_ENTRY_INVALID_TAG1, ISO7816.SW_DATA_INVALID);
+        sendAddPassword(DATA_ENTRY_INVALID_TAG2, ISO7816.SW_DATA_INVALID);
+        sendAddPassword(DATA_ENTRY_INVALID_TAG3, ISO7816.SW_DATA_INVALID);
         sendListId(new byte[]{}, 0x9000, new byte[]{});
     }
 
     @Test
     public void invalidAddDataLengthTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_INVLID_LENGTH1, ISO7816.SW_DATA_INVALID, new byte[]{});
-        sendAddPassword(DATA_ENTRY_INVLID_LENGTH2, ISO7816.SW_DATA_INVALID, new byte[]{});
-        sendAddPassword(DATA_ENTRY_INVLID_LENGTH3, ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendAddPassword(DATA_ENTRY_INVLID_LENGTH1, ISO7816.SW_DATA_INVALID);
+        sendAddPassword(DATA_ENTRY_INVLID_LENGTH2, ISO7816.SW_DATA_INVALID);
+        sendAddPassword(DATA_ENTRY_INVLID_LENGTH3, ISO7816.SW_DATA_INVALID);
         sendListId(new byte[]{}, 0x9000, new byte[]{});
     }
 
     @Test
     public void duplicateAddTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), PasswordWalletApplet.SW_DUPLICATE_IDENTIFIER, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), PasswordWalletApplet.SW_DUPLICATE_IDENTIFIER, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), PasswordWalletApplet.SW_DUPLICATE_IDENTIFIER);
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), PasswordWalletApplet.SW_DUPLICATE_IDENTIFIER);
         sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
     }
 
     @Test
     public void getPasswordTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, DATA_ENTRY_VALID.getData());
-        sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000);
         sendGetPassword(DATA_ENTRY_VALID1.getId(), 0x9000, DATA_ENTRY_VALID1.getData());
     }
 
     @Test
     public void getPasswordAfterEditTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, DATA_ENTRY_VALID.getData());
         sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
         sendEditPassword(DATA_EDIT_ENTRY_VALID1.getFullApdu(), 0x9000, new byte[]{});
@@ -246,21 +345,21 @@ public class PasswordManagerTest extends JavaCardTest {
     @Test
     public void getInvalidIdTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendGetPassword(DATA_ENTRY_VALID1.getId(), PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
     }
 
     @Test
     public void deleteIdTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendDeletePassword(DATA_ENTRY_VALID.getId(), 0x9000, new byte[]{});
     }
 
     @Test
     public void deleteIdInvalidTest() throws CardException {
         sendListId(new byte[]{}, 0x9000, new byte[]{});
-        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
         sendDeletePassword(DATA_ENTRY_VALID1.getId(), PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
     }
 
@@ -268,9 +367,715 @@ public class PasswordManagerTest extends JavaCardTest {
     public void intertwinedAddDeleteTest() throws CardException {
         for (int i = 0; i < 10; i++) {
             sendListId(new byte[]{}, 0x9000, new byte[]{});
-            sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000, new byte[]{});
+            sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
             sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
             sendDeletePassword(DATA_ENTRY_VALID.getId(), 0x9000, new byte[]{});
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void fullVaultTest() throws CardException {
+        sendListId(new byte[]{}, 0x9000, new byte[]{});
+        for (int i = 0; i < PasswordWalletApplet.DEFAULT_CAPACITY; i++) {
+            sendAddPassword(new Password(
+                    new byte[]{(byte) 0xF1, 0x01, (byte) i},
+                    new byte[]{(byte) 0xF2, 0x03, 0x62, 0x6F, 0x62},
+                    new byte[]{(byte) 0xF3, 0x04, 0x70, 0x61, 0x73, 0x73}).getFullApdu(), 0x9000);
+        }
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), ISO7816.SW_FILE_FULL);
+        sendDeletePassword(new byte[]{(byte) 0xF1, 0x01, 0x00}, 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+    }
+
+    @Test
+    public void memoryTest() throws CardException {
+        CommandAPDU commandAPDU = new CommandAPDU(TestUtils.buildApdu(CMD_GET_MEMORY, new byte[]{}));
+        ResponseAPDU response = transmitCommand(commandAPDU);
+        assertEquals(0x9000, response.getSW());
+        assertEquals("data length", 16, response.getData().length);
+        assertEquals("nothing used", 0, getMemoryValue(response.getData(), 0));
+        int free = getMemoryValue(response.getData(), 1);
+        assertEquals("no entry used", 0, getMemoryValue(response.getData(), 2));
+        assertEquals("all entries free", PasswordWalletApplet.DEFAULT_CAPACITY, getMemoryValue(response.getData(), 3));
+        assertTrue("persistent memory available", getMemoryValue(response.getData(), 4) > 0);
+        int transientReset = getMemoryValue(response.getData(), 5);
+        int transientDeselect = getMemoryValue(response.getData(), 6);
+        assertTrue("record can be allocated", getMemoryValue(response.getData(), 7) >= 32);
+
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        response = transmitCommand(commandAPDU);
+        assertEquals(0x9000, response.getSW());
+        assertEquals("1 record used", 32, getMemoryValue(response.getData(), 0));
+        assertEquals("free after addition", free - 32, getMemoryValue(response.getData(), 1));
+        assertEquals("1 entry used", 1, getMemoryValue(response.getData(), 2));
+        assertEquals("1 entry taken from free list", PasswordWalletApplet.DEFAULT_CAPACITY - 1, getMemoryValue(response.getData(), 3));
+        assertEquals("no transient reset leak", transientReset, getMemoryValue(response.getData(), 5));
+        assertEquals("no transient deselect leak", transientDeselect, getMemoryValue(response.getData(), 6));
+
+        sendDeletePassword(DATA_ENTRY_VALID.getId(), 0x9000, new byte[]{});
+        response = transmitCommand(commandAPDU);
+        assertEquals("entry back in free list", PasswordWalletApplet.DEFAULT_CAPACITY, getMemoryValue(response.getData(), 3));
+    }
+
+    private int getMemoryValue(byte[] data, int index) {
+        return TestUtils.getInt(new byte[]{data[index * 2], data[index * 2 + 1]});
+    }
+
+    @Test
+    public void batchAddTest() throws CardException {
+        assertEquals(2, sendAddPassword(TestUtils.concatByteArray(DATA_ENTRY_VALID.getFullApdu(), DATA_ENTRY_VALID1.getFullApdu()), 0x9000).size());
+        sendListId(new byte[]{}, 0x9000, TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), DATA_ENTRY_VALID1.getId()));
+        sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, DATA_ENTRY_VALID.getData());
+        sendGetPassword(DATA_ENTRY_VALID1.getId(), 0x9000, DATA_ENTRY_VALID1.getData());
+    }
+
+    @Test
+    public void batchAddDuplicateTest() throws CardException {
+        sendAddPassword(TestUtils.concatByteArray(DATA_ENTRY_VALID.getFullApdu(), DATA_ENTRY_VALID1.getFullApdu(), DATA_ENTRY_VALID.getFullApdu()),
+                PasswordWalletApplet.SW_DUPLICATE_IDENTIFIER);
+        sendListId(new byte[]{}, 0x9000, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000);
+        sendAddPassword(TestUtils.concatByteArray(DATA_ENTRY_VALID.getFullApdu(), DATA_ENTRY_VALID1.getFullApdu()),
+                PasswordWalletApplet.SW_DUPLICATE_IDENTIFIER);
+        sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID1.getId());
+    }
+
+    @Test
+    public void chainedAddTest() throws CardException {
+        byte[] data = TestUtils.concatByteArray(DATA_ENTRY_VALID.getFullApdu(), DATA_ENTRY_VALID1.getFullApdu(),
+                DATA_ENTRY_VALID2.getFullApdu());
+        int blockSize = 7;
+        for (int i = 0; i < data.length; i += blockSize) {
+            byte[] block = Arrays.copyOfRange(data, i, Math.min(data.length, i + blockSize));
+            if (i + blockSize < data.length) {
+                TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORD_CHAINED, block, 0x9000, new byte[]{});
+            } else {
+                assertEquals(3, sendAddPassword(block, 0x9000).size());
+            }
+        }
+        sendListId(new byte[]{}, 0x9000, TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), DATA_ENTRY_VALID1.getId(),
+                DATA_ENTRY_VALID2.getId()));
+        sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, DATA_ENTRY_VALID.getData());
+        sendGetPassword(DATA_ENTRY_VALID1.getId(), 0x9000, DATA_ENTRY_VALID1.getData());
+        sendGetPassword(DATA_ENTRY_VALID2.getId(), 0x9000, DATA_ENTRY_VALID2.getData());
+    }
+
+    @Test
+    public void chainInterruptedTest() throws CardException {
+        byte[] data = DATA_ENTRY_VALID.getFullApdu();
+        TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORD_CHAINED, Arrays.copyOfRange(data, 0, 8), 0x9000, new byte[]{});
+        sendListId(new byte[]{}, ISO7816.SW_LAST_COMMAND_EXPECTED, new byte[]{});
+        sendAddPassword(Arrays.copyOfRange(data, 8, data.length), ISO7816.SW_DATA_INVALID);
+        sendListId(new byte[]{}, 0x9000, new byte[]{});
+    }
+
+    @Test
+    public void chainedEditTest() throws CardException {
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        byte[] data = DATA_EDIT_ENTRY_VALID1.getFullApdu();
+        TestUtils.sendCmdBatch(this, CMD_EDIT_PASSWORD_CHAINED, Arrays.copyOfRange(data, 0, 10), 0x9000, new byte[]{});
+        sendEditPassword(Arrays.copyOfRange(data, 10, data.length), 0x9000, new byte[]{});
+        sendGetPassword(DATA_ENTRY_VALID1.getId(), 0x9000, DATA_ENTRY_VALID1.getData());
+    }
+
+    @Test
+    public void chainedAddOverflowTest() throws CardException {
+        byte[] block = new byte[255];
+        for (int i = 0; i < PasswordWalletApplet.MAX_DATA_SIZE / block.length; i++) {
+            TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORD_CHAINED, block, 0x9000, new byte[]{});
+        }
+        TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORD_CHAINED, block, ISO7816.SW_WRONG_LENGTH, new byte[]{});
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
+    }
+
+    @Test
+    public void listGetResponseTest() throws CardException {
+        byte[] expected = new byte[]{};
+        for (int i = 0; i < 20; i++) {
+            byte[] id = new byte[30];
+            id[0] = (byte) i;
+            Password entry = new Password(
+                    TestUtils.concatByteArray(new byte[]{(byte) 0xF1, 0x1E}, id),
+                    new byte[]{(byte) 0xF2, 0x03, 0x62, 0x6F, 0x62},
+                    new byte[]{(byte) 0xF3, 0x04, 0x70, 0x61, 0x73, 0x73});
+            sendAddPassword(entry.getFullApdu(), 0x9000);
+            expected = TestUtils.concatByteArray(expected, entry.getId());
+        }
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, new byte[]{})));
+        assertEquals("more data available", 0x61, response.getSW1());
+        assertEquals("full page", 256, response.getData().length);
+
+        assertArrayEquals(expected, listAll((byte) 0x00));
+        assertArrayEquals(expected, listAll((byte) 0x90));
+    }
+
+    @Test
+    public void getResponseNotPendingTest() throws CardException {
+        TestUtils.sendCmdBatch(this, CMD_GET_RESPONSE, new byte[]{}, ISO7816.SW_CONDITIONS_NOT_SATISFIED, new byte[]{});
+        for (int i = 0; i < 10; i++) {
+            sendAddPassword(new Password(
+                    new byte[]{(byte) 0xF1, 0x1E, (byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                    new byte[]{(byte) 0xF2, 0x03, 0x62, 0x6F, 0x62},
+                    new byte[]{(byte) 0xF3, 0x04, 0x70, 0x61, 0x73, 0x73}).getFullApdu(), 0x9000);
+        }
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, new byte[]{})));
+        assertEquals("2 identifiers remaining", 0x6140, response.getSW());
+        sendGetPassword(DATA_ENTRY_VALID.getId(), PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+        TestUtils.sendCmdBatch(this, CMD_GET_RESPONSE, new byte[]{}, ISO7816.SW_CONDITIONS_NOT_SATISFIED, new byte[]{});
+    }
+
+    @Test
+    public void batchAddStatusTest() throws CardException {
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORDS, TestUtils.concatByteArray(DATA_ENTRY_VALID.getFullApdu(),
+                DATA_ENTRY_VALID1.getFullApdu(), DATA_ENTRY_VALID1.getFullApdu()), 0x9000,
+                new byte[]{0x6A, (byte) 0x8A, (byte) 0x90, 0x00, 0x6A, (byte) 0x8A});
+        sendListId(new byte[]{}, 0x9000, TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), DATA_ENTRY_VALID1.getId()));
+        sendGetPassword(DATA_ENTRY_VALID1.getId(), 0x9000, DATA_ENTRY_VALID1.getData());
+        TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORDS, DATA_ENTRY_INVALID_TAG3, ISO7816.SW_DATA_INVALID, new byte[]{});
+    }
+
+    @Test
+    public void batchAddChainedFullTest() throws CardException {
+        int count = 150;
+        byte[] data = new byte[]{};
+        byte[] expected = new byte[]{};
+        for (int i = 0; i < count; i++) {
+            data = TestUtils.concatByteArray(data, new byte[]{(byte) 0xF1, 0x01, (byte) i, (byte) 0xF2, 0x00, (byte) 0xF3, 0x01, (byte) i});
+            expected = TestUtils.concatByteArray(expected, (i < PasswordWalletApplet.DEFAULT_CAPACITY) ?
+                    new byte[]{(byte) 0x90, 0x00} : new byte[]{0x6A, (byte) 0x84});
+        }
+        ResponseAPDU response = null;
+        for (int i = 0; i < data.length; i += 255) {
+            byte[] block = Arrays.copyOfRange(data, i, Math.min(data.length, i + 255));
+            byte[] cmd = (i + 255 < data.length) ? CMD_ADD_PASSWORDS_CHAINED : CMD_ADD_PASSWORDS;
+            response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(cmd, block)));
+        }
+        assertEquals("more status available", 0x612C, response.getSW());
+        byte[] status = response.getData();
+        response = transmitCommand(new CommandAPDU(TestUtils.concatByteArray(CMD_GET_RESPONSE, new byte[]{0x2C})));
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals(expected, TestUtils.concatByteArray(status, response.getData()));
+        sendGetPassword(new byte[]{(byte) 0xF1, 0x01, 0x05}, 0x9000, new byte[]{(byte) 0xF2, 0x00, (byte) 0xF3, 0x01, 0x05});
+    }
+
+    /**
+     * Allocate the entry pool again in the simulator, all entries are lost.
+     */
+    private static void resetPool(short capacity, short heapSize) throws IllegalAccessException {
+        TestUtils.getField(PasswordEntry.class, "first").set(null, null);
+        TestUtils.getField(PasswordEntry.class, "deleted").set(null, null);
+        PasswordEntry.init(capacity, heapSize);
+    }
+
+    @Test
+    public void batchAddHeapFullTest() throws CardException, IllegalAccessException {
+        assumeNotNull(TestSuite.getSimulator());
+        resetPool((short) 8, (short) 96);
+        try {
+            sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+            byte[] longId = new byte[PasswordEntry.SIZE_ID + 1];
+            longId[0] = (byte) 0xF1;
+            longId[1] = (byte) (PasswordEntry.SIZE_ID - 1);
+            Arrays.fill(longId, 2, longId.length, (byte) 0x61);
+            byte[] entry = TestUtils.concatByteArray(longId, DATA_ENTRY_VALID.getData());
+            TestUtils.sendCmdBatch(this, CMD_ADD_PASSWORDS, entry, 0x9000, new byte[]{0x6A, (byte) 0x84});
+
+            //the rejected entry leaves the directory intact
+            sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
+            sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, DATA_ENTRY_VALID.getData());
+            sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), PasswordWalletApplet.SW_DUPLICATE_IDENTIFIER);
+            ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_GET_MEMORY, new byte[]{})));
+            assertEquals("1 entry used", 1, getMemoryValue(response.getData(), 2));
+
+            TestUtils.sendCmdBatch(this, CMD_DELETE_PASSWORDS, new byte[]{}, 0x9000, new byte[]{});
+            sendListId(new byte[]{}, 0x9000, new byte[]{});
+            sendGetPassword(DATA_ENTRY_VALID.getId(), PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+            response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_GET_MEMORY, new byte[]{})));
+            assertEquals("no entry used", 0, getMemoryValue(response.getData(), 2));
+            assertEquals("all entries free", 8, getMemoryValue(response.getData(), 3));
+            sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        } finally {
+            resetPool(PasswordWalletApplet.DEFAULT_CAPACITY,
+                    (short) (PasswordWalletApplet.DEFAULT_CAPACITY * PasswordWalletApplet.DEFAULT_RECORD_SIZE));
+        }
+    }
+
+    @Test
+    public void batchRetrieveTest() throws CardException {
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000);
+        TestUtils.sendCmdBatch(this, CMD_GET_PASSWORDS,
+                TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), DATA_ENTRY_VALID2.getId(), DATA_ENTRY_VALID1.getId()), 0x9000,
+                TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), DATA_ENTRY_VALID.getData(), DATA_ENTRY_VALID2.getId(),
+                        DATA_ENTRY_VALID1.getId(), DATA_ENTRY_VALID1.getData()));
+        TestUtils.sendCmdBatch(this, CMD_GET_PASSWORDS, DATA_ENTRY_INVALID_TAG1, ISO7816.SW_DATA_INVALID, new byte[]{});
+    }
+
+    @Test
+    public void batchRetrieveGetResponseTest() throws CardException {
+        byte[] ids = new byte[]{};
+        byte[] expected = new byte[]{};
+        for (int i = 0; i < 5; i++) {
+            byte[] id = new byte[30];
+            byte[] username = new byte[60];
+            byte[] password = new byte[100];
+            id[0] = (byte) i;
+            username[0] = (byte) i;
+            password[0] = (byte) i;
+            Password entry = new Password(
+                    TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) id.length}, id),
+                    TestUtils.concatByteArray(new byte[]{(byte) 0xF2, (byte) username.length}, username),
+                    TestUtils.concatByteArray(new byte[]{(byte) 0xF3, (byte) password.length}, password));
+            sendAddPassword(entry.getFullApdu(), 0x9000);
+            ids = TestUtils.concatByteArray(ids, entry.getId());
+            expected = TestUtils.concatByteArray(expected, entry.getId(), entry.getData());
+        }
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_GET_PASSWORDS, ids)));
+        byte[] data = response.getData();
+        while (response.getSW1() == 0x61) {
+            assertEquals("one record per response", 0x6100, response.getSW());
+            response = transmitCommand(new CommandAPDU(TestUtils.concatByteArray(CMD_GET_RESPONSE, new byte[]{0x00})));
+            data = TestUtils.concatByteArray(data, response.getData());
+        }
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals(expected, data);
+    }
+
+    @Test
+    public void exportImportTest() throws CardException {
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000);
+        byte[] data = exportAll();
+
+        //passwords are exported encrypted with the card key
+        Password[] entries = new Password[]{DATA_ENTRY_VALID, DATA_ENTRY_VALID1};
+        int offset = 0;
+        for (Password entry : entries) {
+            int usernameOfs = offset + 2 + (data[offset + 1] & 0xFF);
+            int passwordOfs = usernameOfs + 2 + (data[usernameOfs + 1] & 0xFF);
+            assertArrayEquals("identifier", entry.getId(), Arrays.copyOfRange(data, offset, usernameOfs));
+            byte[] password = Arrays.copyOfRange(data, passwordOfs + 2, passwordOfs + 2 + (data[passwordOfs + 1] & 0xFF));
+            assertEquals("encrypted length", 16, password.length);
+            ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_DECRYPT, password)));
+            assertArrayEquals("clear password", TestUtils.concatByteArray(Arrays.copyOfRange(data, usernameOfs, passwordOfs),
+                    new byte[]{(byte) 0xF3, (byte) response.getData().length}, response.getData()), entry.getData());
+            offset = passwordOfs + 2 + password.length;
+        }
+        assertEquals("export length", data.length, offset);
+
+        TestUtils.sendCmdBatch(this, CMD_DELETE_PASSWORDS, new byte[]{}, 0x9000, new byte[]{});
+        sendListId(new byte[]{}, 0x9000, new byte[]{});
+
+        TestUtils.sendCmdBatch(this, CMD_IMPORT_PASSWORDS, data, 0x9000, new byte[]{(byte) 0x90, 0x00, (byte) 0x90, 0x00});
+        sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, DATA_ENTRY_VALID.getData());
+        sendGetPassword(DATA_ENTRY_VALID1.getId(), 0x9000, DATA_ENTRY_VALID1.getData());
+        TestUtils.sendCmdBatch(this, CMD_IMPORT_PASSWORDS, data, 0x9000,
+                new byte[]{0x6A, (byte) 0x8A, 0x6A, (byte) 0x8A});
+    }
+
+    @Test
+    public void exportImportChainedTest() throws CardException {
+        for (int i = 0; i < 5; i++) {
+            byte[] id = new byte[20];
+            byte[] username = new byte[20];
+            byte[] password = new byte[40];
+            id[0] = (byte) i;
+            username[0] = (byte) i;
+            password[0] = (byte) i;
+            sendAddPassword(TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) id.length}, id,
+                    new byte[]{(byte) 0xF2, (byte) username.length}, username,
+                    new byte[]{(byte) 0xF3, (byte) password.length}, password), 0x9000);
+        }
+        byte[] list = listAll((byte) 0x00);
+        byte[] data = exportAll();
+        assertEquals("export length", 5 * (22 + 22 + 50), data.length);
+
+        TestUtils.sendCmdBatch(this, CMD_DELETE_PASSWORDS, new byte[]{}, 0x9000, new byte[]{});
+        ResponseAPDU response = null;
+        for (int i = 0; i < data.length; i += 255) {
+            byte[] block = Arrays.copyOfRange(data, i, Math.min(data.length, i + 255));
+            byte[] cmd = (i + 255 < data.length) ? CMD_IMPORT_PASSWORDS_CHAINED : CMD_IMPORT_PASSWORDS;
+            response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(cmd, block)));
+        }
+        assertEquals(0x9000, response.getSW());
+        assertEquals("status count", 10, response.getData().length);
+        assertEquals("same entries", list.length, listAll((byte) 0x00).length);
+        assertEquals("same export length", data.length, exportAll().length);
+    }
+
+    @Test
+    public void importInvalidTest() throws CardException {
+        TestUtils.sendCmdBatch(this, CMD_IMPORT_PASSWORDS, DATA_ENTRY_VALID.getFullApdu(), ISO7816.SW_DATA_INVALID, new byte[]{});
+        TestUtils.sendCmdBatch(this, CMD_IMPORT_PASSWORDS, TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(),
+                new byte[]{(byte) 0xF2, 0x00, (byte) 0xF3, 0x00}), ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendListId(new byte[]{}, 0x9000, new byte[]{});
+    }
+
+    @Test
+    public void handleTest() throws CardException {
+        byte[] handle = sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000).get(0);
+        TestUtils.sendCmdBatch(this, CMD_LIST_ID_HANDLES, new byte[]{}, 0x9000,
+                TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), handle));
+        sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
+        sendGetPassword(handle, 0x9000, DATA_ENTRY_VALID.getData());
+
+        sendEditPassword(TestUtils.concatByteArray(handle, DATA_ENTRY_VALID1.getFullApdu()), 0x9000, new byte[]{});
+        sendGetPassword(handle, 0x9000, DATA_ENTRY_VALID1.getData());
+        TestUtils.sendCmdBatch(this, CMD_LIST_ID_HANDLES, new byte[]{}, 0x9000,
+                TestUtils.concatByteArray(DATA_ENTRY_VALID1.getId(), handle));
+
+        sendDeletePassword(handle, 0x9000, new byte[]{});
+        sendGetPassword(handle, PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+        sendDeletePassword(handle, PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+
+        //the slot of the deleted entry is reused with another handle
+        byte[] newHandle = sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000).get(0);
+        assertFalse(Arrays.equals(handle, newHandle));
+        sendGetPassword(handle, PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+        sendEditPassword(TestUtils.concatByteArray(handle, DATA_ENTRY_VALID1.getFullApdu()),
+                PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+        sendGetPassword(newHandle, 0x9000, DATA_ENTRY_VALID.getData());
+    }
+
+    @Test
+    public void handleInvalidTest() throws CardException {
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        sendGetPassword(new byte[]{PasswordWalletApplet.TAG_HANDLE, 0x01, 0x00}, ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendGetPassword(new byte[]{PasswordWalletApplet.TAG_HANDLE, 0x03, 0x00, 0x00, 0x00}, ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendGetPassword(new byte[]{PasswordWalletApplet.TAG_HANDLE, 0x02, 0x7F, (byte) 0xFF},
+                PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+        sendGetPassword(new byte[]{PasswordWalletApplet.TAG_HANDLE, 0x02, (byte) 0xFF, (byte) 0xFF},
+                PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+        sendDeletePassword(new byte[]{PasswordWalletApplet.TAG_HANDLE, 0x02, 0x7F, (byte) 0xFF},
+                PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+        sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID.getId());
+    }
+
+    @Test
+    public void retrieveByHandleTest() throws CardException {
+        List<byte[]> handles = sendAddPassword(TestUtils.concatByteArray(DATA_ENTRY_VALID.getFullApdu(),
+                DATA_ENTRY_VALID1.getFullApdu()), 0x9000);
+        byte[] missing = new byte[]{PasswordWalletApplet.TAG_HANDLE, 0x02, 0x7F, (byte) 0xFF};
+        TestUtils.sendCmdBatch(this, CMD_GET_PASSWORDS, TestUtils.concatByteArray(handles.get(1), DATA_ENTRY_VALID.getId(), missing),
+                0x9000, TestUtils.concatByteArray(handles.get(1), DATA_ENTRY_VALID1.getData(),
+                        DATA_ENTRY_VALID.getId(), DATA_ENTRY_VALID.getData(), missing));
+    }
+
+    @Test
+    public void listHandlesTest() throws CardException {
+        byte[] expected = new byte[]{};
+        for (int i = 0; i < 20; i++) {
+            Password entry = new Password(
+                    new byte[]{(byte) 0xF1, 0x08, 0x65, 0x6E, 0x74, 0x72, 0x79, 0x2D, 0x30, (byte) (0x41 + i)},
+                    new byte[]{(byte) 0xF2, 0x03, 0x62, 0x6F, 0x62},
+                    new byte[]{(byte) 0xF3, 0x04, 0x70, 0x61, 0x73, 0x73});
+            byte[] handle = sendAddPassword(entry.getFullApdu(), 0x9000).get(0);
+            expected = TestUtils.concatByteArray(expected, entry.getId(), handle);
+        }
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID_HANDLES, new byte[]{})));
+        byte[] data = response.getData();
+        while (response.getSW1() == 0x61) {
+            response = transmitCommand(new CommandAPDU(TestUtils.concatByteArray(CMD_GET_RESPONSE, new byte[]{(byte) response.getSW2()})));
+            data = TestUtils.concatByteArray(data, response.getData());
+        }
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals(expected, data);
+        TestUtils.sendCmdBatch(this, new byte[]{(byte) 0x90, 0x36, 0x02, 0x00}, new byte[]{}, ISO7816.SW_INCORRECT_P1P2, new byte[]{});
+    }
+
+    @Test
+    public void cursorListTest() throws CardException {
+        byte[] expected = new byte[]{};
+        for (int i = 0; i < 30; i++) {
+            Password entry = new Password(
+                    new byte[]{(byte) 0xF1, 0x0C, 0x63, 0x75, 0x72, 0x73, 0x6F, 0x72, 0x2D, 0x30, 0x30, 0x30, 0x30, (byte) (0x61 + i)},
+                    new byte[]{(byte) 0xF2, 0x01, 0x62},
+                    new byte[]{(byte) 0xF3, 0x01, 0x70});
+            sendAddPassword(entry.getFullApdu(), 0x9000);
+            expected = TestUtils.concatByteArray(expected, entry.getId());
+        }
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, new byte[]{(byte) 0xFC, 0x00})));
+        byte[] data = new byte[]{};
+        while (response.getSW1() == 0x61) {
+            byte[] page = response.getData();
+            assertEquals((byte) 0xFC, page[page.length - 5]);
+            assertEquals(0x03, page[page.length - 4]);
+            data = TestUtils.concatByteArray(data, Arrays.copyOf(page, page.length - 5));
+
+            //pending response is discarded by another command, the listing is resumed with the cursor
+            sendGetPassword(DATA_ENTRY_VALID.getId(), PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+            response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID,
+                    Arrays.copyOfRange(page, page.length - 5, page.length))));
+        }
+        assertEquals(0x9000, response.getSW());
+        data = TestUtils.concatByteArray(data, response.getData());
+        assertArrayEquals(expected, data);
+
+        //entry pointed by the cursor is deleted
+        response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, new byte[]{(byte) 0xFC, 0x00})));
+        assertEquals(0x61, response.getSW1());
+        byte[] page = response.getData();
+        byte[] cursor = Arrays.copyOfRange(page, page.length - 5, page.length);
+        sendDeletePassword(new byte[]{(byte) 0xF7, 0x02, cursor[2], cursor[3]}, 0x9000, new byte[]{});
+        sendListId(cursor, PasswordWalletApplet.SW_CURSOR_EXPIRED, new byte[]{});
+
+        //entry pointed by the cursor is renamed and moved to the end of the list
+        response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, new byte[]{(byte) 0xFC, 0x00})));
+        assertEquals(0x61, response.getSW1());
+        page = response.getData();
+        cursor = Arrays.copyOfRange(page, page.length - 5, page.length);
+        byte[] handle = new byte[]{(byte) 0xF7, 0x02, cursor[2], cursor[3]};
+        sendEditPassword(TestUtils.concatByteArray(handle, new byte[]{(byte) 0xF2, 0x01, 0x61}), 0x9000, new byte[]{});
+        assertEquals("cursor kept if the identifier is unchanged", 0x9000,
+                transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_LIST_ID, cursor))).getSW());
+        sendEditPassword(TestUtils.concatByteArray(handle, new byte[]{(byte) 0xF1, 0x03, 0x7A, 0x7A, 0x7A}), 0x9000, new byte[]{});
+        sendListId(cursor, PasswordWalletApplet.SW_CURSOR_EXPIRED, new byte[]{});
+
+        sendListId(new byte[]{(byte) 0xFC, 0x01, 0x00}, ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendListId(new byte[]{(byte) 0xF1, 0x00}, ISO7816.SW_DATA_INVALID, new byte[]{});
+    }
+
+    /**
+     * Search identifiers, draining GET RESPONSE while 61xx is returned.
+     *
+     * @param cmd    search command
+     * @param prefix identifier prefix
+     * @return identifier and handle TLV of matching entries
+     */
+    private byte[] search(byte[] cmd, String prefix) throws CardException {
+        byte[] value = prefix.getBytes();
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(cmd,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) value.length}, value))));
+        byte[] data = response.getData();
+        while (response.getSW1() == 0x61) {
+            response = transmitCommand(new CommandAPDU(TestUtils.concatByteArray(CMD_GET_RESPONSE, new byte[]{(byte) response.getSW2()})));
+            data = TestUtils.concatByteArray(data, response.getData());
+        }
+        assertEquals(0x9000, response.getSW());
+        return data;
+    }
+
+    private byte[] idAndHandle(String id, byte[] handle) {
+        return TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) id.length()}, id.getBytes(), handle);
+    }
+
+    @Test
+    public void searchTest() throws CardException {
+        String[] ids = {"mail", "Bank", "amazon", "bank-2", "Apple", "MAIL"};
+        Map<String, byte[]> handles = new HashMap<>();
+        for (String id : ids) {
+            handles.put(id, sendAddPassword(new Password(
+                    TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) id.length()}, id.getBytes()),
+                    new byte[]{(byte) 0xF2, 0x01, 0x62},
+                    new byte[]{(byte) 0xF3, 0x01, 0x70}).getFullApdu(), 0x9000).get(0));
+        }
+        assertArrayEquals(TestUtils.concatByteArray(idAndHandle("amazon", handles.get("amazon")),
+                idAndHandle("Apple", handles.get("Apple"))), search(CMD_SEARCH_IGNORE_CASE, "a"));
+        assertArrayEquals(idAndHandle("amazon", handles.get("amazon")), search(CMD_SEARCH, "a"));
+        assertArrayEquals(TestUtils.concatByteArray(idAndHandle("Bank", handles.get("Bank")),
+                idAndHandle("bank-2", handles.get("bank-2"))), search(CMD_SEARCH_IGNORE_CASE, "BANK"));
+        assertArrayEquals(idAndHandle("MAIL", handles.get("MAIL")), search(CMD_SEARCH, "MA"));
+        assertArrayEquals(new byte[]{}, search(CMD_SEARCH, "c"));
+        assertEquals("all entries", 65, search(CMD_SEARCH, "").length);
+
+        TestUtils.sendCmdBatch(this, CMD_SEARCH, new byte[]{(byte) 0xF1, 0x02, 0x61}, ISO7816.SW_DATA_INVALID, new byte[]{});
+        TestUtils.sendCmdBatch(this, CMD_SEARCH, new byte[]{(byte) 0xF2, 0x01, 0x61}, ISO7816.SW_DATA_INVALID, new byte[]{});
+        TestUtils.sendCmdBatch(this, new byte[]{(byte) 0x90, 0x3C, 0x02, 0x00}, new byte[]{(byte) 0xF1, 0x00},
+                ISO7816.SW_INCORRECT_P1P2, new byte[]{});
+    }
+
+    @Test
+    public void searchPagingTest() throws CardException {
+        byte[] expected = new byte[]{};
+        for (int i = 0; i < 30; i++) {
+            String id = "search-" + (char) ('a' + i / 10) + (char) ('0' + i % 10);
+            byte[] handle = sendAddPassword(new Password(
+                    TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) id.length()}, id.getBytes()),
+                    new byte[]{(byte) 0xF2, 0x01, 0x62},
+                    new byte[]{(byte) 0xF3, 0x01, 0x70}).getFullApdu(), 0x9000).get(0);
+            expected = TestUtils.concatByteArray(expected, idAndHandle(id, handle));
+        }
+        sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000);
+        assertArrayEquals(expected, search(CMD_SEARCH, "search-"));
+    }
+
+    @Test
+    public void partialEditTest() throws CardException {
+        byte[] handle = sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000).get(0);
+        byte[] username = new byte[]{(byte) 0xF2, 0x05, 0x61, 0x6C, 0x69, 0x63, 0x65};
+        byte[] password = new byte[]{(byte) 0xF3, 0x03, 0x0A, 0x0B, 0x0C};
+
+        //only the key : nothing to update
+        sendEditPassword(handle, 0x9000, new byte[]{});
+        sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, DATA_ENTRY_VALID.getData());
+
+        sendEditPassword(TestUtils.concatByteArray(handle, username), 0x9000, new byte[]{});
+        sendGetPassword(DATA_ENTRY_VALID.getId(), 0x9000, TestUtils.concatByteArray(username,
+                new byte[]{(byte) 0xF3, 0x04, 0x01, 0x02, 0x03, 0x04}));
+
+        sendEditPassword(TestUtils.concatByteArray(new byte[]{(byte) 0xF4, 0x04, 0x48, 0x6F, 0x6D, 0x65}, password),
+                0x9000, new byte[]{});
+        sendGetPassword(handle, 0x9000, TestUtils.concatByteArray(username, password));
+
+        sendEditPassword(TestUtils.concatByteArray(handle, DATA_ENTRY_VALID1.getId()), 0x9000, new byte[]{});
+        sendListId(new byte[]{}, 0x9000, DATA_ENTRY_VALID1.getId());
+        sendGetPassword(DATA_ENTRY_VALID1.getId(), 0x9000, TestUtils.concatByteArray(username, password));
+
+        //identical values
+        sendEditPassword(TestUtils.concatByteArray(handle, DATA_ENTRY_VALID1.getId(), username, password), 0x9000, new byte[]{});
+        sendGetPassword(handle, 0x9000, TestUtils.concatByteArray(username, password));
+    }
+
+    @Test
+    public void partialEditInvalidTest() throws CardException {
+        byte[] handle = sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000).get(0);
+        sendEditPassword(TestUtils.concatByteArray(handle, DATA_ENTRY_VALID1.getData(), DATA_ENTRY_VALID1.getId()),
+                ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendEditPassword(TestUtils.concatByteArray(handle, DATA_ENTRY_VALID1.getId(), DATA_ENTRY_VALID1.getId()),
+                ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendEditPassword(TestUtils.concatByteArray(handle, new byte[]{(byte) 0xF2, 0x04, 0x62}),
+                ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendEditPassword(DATA_ENTRY_VALID1.getId(), ISO7816.SW_DATA_INVALID, new byte[]{});
+        sendGetPassword(handle, 0x9000, DATA_ENTRY_VALID.getData());
+    }
+
+    @Test
+    public void listChangesTest() throws CardException {
+        byte[] generation = getGeneration(listChanges(new byte[4]));
+        byte[] changes = listChanges(generation);
+        assertArrayEquals(generation, getGeneration(changes));
+        assertEquals(6, changes.length);
+
+        byte[] handle = sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000).get(0);
+        byte[] handle1 = sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000).get(0);
+        changes = listChanges(generation);
+        assertArrayEquals(TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), handle, DATA_ENTRY_VALID1.getId(), handle1),
+                Arrays.copyOfRange(changes, 6, changes.length));
+        generation = getGeneration(changes);
+        assertEquals(6, listChanges(generation).length);
+
+        sendEditPassword(TestUtils.concatByteArray(handle, new byte[]{(byte) 0xF2, 0x01, 0x61}), 0x9000, new byte[]{});
+        changes = listChanges(generation);
+        assertArrayEquals(TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), handle), Arrays.copyOfRange(changes, 6, changes.length));
+        generation = getGeneration(changes);
+
+        //identical values are not a change
+        sendEditPassword(TestUtils.concatByteArray(handle, new byte[]{(byte) 0xF2, 0x01, 0x61}), 0x9000, new byte[]{});
+        assertArrayEquals(generation, getGeneration(listChanges(generation)));
+
+        sendDeletePassword(handle1, 0x9000, new byte[]{});
+        changes = listChanges(generation);
+        assertArrayEquals(new byte[]{PasswordWalletApplet.TAG_DELETED_HANDLE, 0x02, handle1[2], handle1[3]},
+                Arrays.copyOfRange(changes, 6, changes.length));
+
+        changes = listChanges(new byte[4]);
+        assertArrayEquals(TestUtils.concatByteArray(DATA_ENTRY_VALID.getId(), handle), Arrays.copyOfRange(changes, 6, changes.length));
+    }
+
+    @Test
+    public void listChangesPagingTest() throws CardException {
+        byte[] generation = getGeneration(listChanges(new byte[4]));
+        byte[] expected = new byte[]{};
+        for (int i = 0; i < 20; i++) {
+            Password entry = new Password(
+                    new byte[]{(byte) 0xF1, 0x08, 0x65, 0x6E, 0x74, 0x72, 0x79, 0x2D, 0x30, (byte) (0x41 + i)},
+                    new byte[]{(byte) 0xF2, 0x03, 0x62, 0x6F, 0x62},
+                    new byte[]{(byte) 0xF3, 0x04, 0x70, 0x61, 0x73, 0x73});
+            byte[] handle = sendAddPassword(entry.getFullApdu(), 0x9000).get(0);
+            if (i >= 5) {
+                expected = TestUtils.concatByteArray(expected, entry.getId(), handle);
+            }
+            if (i == 4) {
+                generation = getGeneration(listChanges(generation));
+            }
+        }
+        byte[] changes = listChanges(generation);
+        assertArrayEquals(expected, Arrays.copyOfRange(changes, 6, changes.length));
+    }
+
+    @Test
+    public void listChangesExpiredTest() throws CardException {
+        byte[] generation = getGeneration(listChanges(new byte[4]));
+        for (int i = 0; i < 17; i++) {
+            byte[] handle = sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000).get(0);
+            sendDeletePassword(handle, 0x9000, new byte[]{});
+        }
+        TestUtils.sendCmdBatch(this, CMD_LIST_CHANGES, generation, PasswordWalletApplet.SW_CHANGES_NOT_AVAILABLE, new byte[]{});
+        TestUtils.sendCmdBatch(this, CMD_LIST_CHANGES, new byte[]{0x7F, (byte) 0xFF, 0x00, 0x00},
+                PasswordWalletApplet.SW_CHANGES_NOT_AVAILABLE, new byte[]{});
+        TestUtils.sendCmdBatch(this, CMD_LIST_CHANGES, new byte[]{0x00, 0x00, (byte) 0x80, 0x00}, ISO7816.SW_DATA_INVALID, new byte[]{});
+        TestUtils.sendCmdBatch(this, CMD_LIST_CHANGES, new byte[]{0x00, 0x00, 0x00}, ISO7816.SW_WRONG_LENGTH, new byte[]{});
+        assertEquals(6, listChanges(new byte[4]).length);
+        generation = getGeneration(listChanges(new byte[4]));
+        assertEquals(6, listChanges(generation).length);
+    }
+
+    private byte[] getDigest() throws CardException {
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_GET_DIGEST, new byte[]{})));
+        assertEquals(0x9000, response.getSW());
+        byte[] data = response.getData();
+        assertEquals(20, data.length);
+        assertEquals(PasswordWalletApplet.TAG_GENERATION, data[0]);
+        assertEquals(PasswordWalletApplet.TAG_ENTRY_COUNT, data[6]);
+        assertEquals(PasswordWalletApplet.TAG_DIGEST, data[10]);
+        return data;
+    }
+
+    @Test
+    public void digestTest() throws CardException, NoSuchAlgorithmException {
+        byte[] empty = getDigest();
+        assertArrayEquals(new byte[]{0x00, 0x00}, Arrays.copyOfRange(empty, 8, 10));
+        assertArrayEquals(Arrays.copyOf(MessageDigest.getInstance("SHA-1").digest(), 8), Arrays.copyOfRange(empty, 12, 20));
+        assertArrayEquals(empty, getDigest());
+
+        byte[] handle = sendAddPassword(DATA_ENTRY_VALID.getFullApdu(), 0x9000).get(0);
+        byte[] handle1 = sendAddPassword(DATA_ENTRY_VALID1.getFullApdu(), 0x9000).get(0);
+        byte[] digest = getDigest();
+        assertArrayEquals(new byte[]{0x00, 0x02}, Arrays.copyOfRange(digest, 8, 10));
+        MessageDigest sha = MessageDigest.getInstance("SHA-1");
+        sha.update(Arrays.copyOfRange(DATA_ENTRY_VALID.getId(), 1, 6));
+        sha.update(Arrays.copyOfRange(handle, 2, 4));
+        sha.update(Arrays.copyOfRange(DATA_ENTRY_VALID1.getId(), 1, 6));
+        sha.update(Arrays.copyOfRange(handle1, 2, 4));
+        assertArrayEquals(Arrays.copyOf(sha.digest(), 8), Arrays.copyOfRange(digest, 12, 20));
+        assertArrayEquals(getGeneration(listChanges(new byte[4])), Arrays.copyOfRange(digest, 2, 6));
+
+        //only the generation changes if no identifier changes
+        sendEditPassword(TestUtils.concatByteArray(handle, new byte[]{(byte) 0xF2, 0x01, 0x61}), 0x9000, new byte[]{});
+        byte[] edited = getDigest();
+        assertFalse(Arrays.equals(Arrays.copyOfRange(digest, 2, 6), Arrays.copyOfRange(edited, 2, 6)));
+        assertArrayEquals(Arrays.copyOfRange(digest, 6, 20), Arrays.copyOfRange(edited, 6, 20));
+
+        sendDeletePassword(handle, 0x9000, new byte[]{});
+        sendDeletePassword(handle1, 0x9000, new byte[]{});
+        assertArrayEquals(Arrays.copyOfRange(empty, 6, 20), Arrays.copyOfRange(getDigest(), 6, 20));
+        TestUtils.sendCmdBatch(this, CMD_GET_DIGEST, new byte[]{0x00}, ISO7816.SW_WRONG_LENGTH, new byte[]{});
+    }
+
+    @Test
+    public void countersTest() throws CardException {
+        ResponseAPDU response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_GET_RESET_COUNTERS, new byte[]{})));
+        assertEquals(0x9000, response.getSW());
+        assertEquals((byte) 0xE6, response.getData()[0]);
+
+        sendListId(new byte[]{}, 0x9000, new byte[]{});
+        sendGetPassword(DATA_ENTRY_VALID.getId(), PasswordWalletApplet.SW_IDENTIFIER_NOT_FOUND, new byte[]{});
+
+        response = transmitCommand(new CommandAPDU(TestUtils.buildApdu(CMD_GET_COUNTERS, new byte[]{})));
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals("instruction counters", new byte[]{
+                (byte) 0xE6, 0x0F,
+                0x32, 0x00, 0x00, 0x00, 0x01,
+                0x36, 0x00, 0x00, 0x00, 0x01,
+                0x55, 0x00, 0x00, 0x00, 0x01,
+                (byte) 0xE7, 0x0C,
+                (byte) 0x90, 0x00, 0x00, 0x00, 0x00, 0x02,
+                0x6A, (byte) 0x82, 0x00, 0x00, 0x00, 0x01
+        }, response.getData());
+
+        TestUtils.sendCmdBatch(this, CMD_GET_COUNTERS, new byte[]{0x00}, ISO7816.SW_WRONG_LENGTH, new byte[]{});
+        TestUtils.sendCmdBatch(this, new byte[]{(byte) 0x90, 0x55, 0x02, 0x00}, new byte[]{}, ISO7816.SW_INCORRECT_P1P2, new byte[]{});
+    }
+}
@@ -1,15 +1,21 @@
 package fr.bmartel.smartcard.passwordwallet;
 
+import com.licel.jcardsim.utils.AIDUtil;
+
 import org.globalplatform.GPSystem;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import fr.bmartel.smartcard.passwordwallet.utils.TestUtils;
+import javacard.framework.ISO7816;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class StateTest extends JavaCardTest {
@@ -36,4 +42,36 @@ public class StateTest extends JavaCardTest {
         assertEquals(0x9000, response.getSW());
         assertEquals("data length", 0, response.getData().length);
     }
+
+    @Test
+    public void checkStatus() throws Exception {
+        CommandAPDU c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x52, 0x00, 0x00}, new byte[]{}));
+        ResponseAPDU response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        byte[] data = response.getData();
+        assertEquals(PasswordWalletApplet.TAG_STATUS, data[0]);
+        assertEquals("template length", data.length - 2, data[1] & 0xFF);
+        assertArrayEquals(new byte[]{
+                PasswordWalletApplet.TAG_CARD_STATE, 0x01, GPSystem.CARD_SECURED,
+                PasswordWalletApplet.TAG_PIN_STATE, 0x02, 0x01, 0x03,
+                PasswordWalletApplet.TAG_PROTOCOL_VERSION, 0x02, 0x02, 0x00,
+                PasswordWalletApplet.TAG_MAX_DATA_SIZE, 0x02, 0x08, 0x00,
+                PasswordWalletApplet.TAG_PADDING_MODE, 0x01,
+                TestUtils.getPaddingMode(TestSuite.getSimulator(), TestSuite.APPLET_AID, data[19])}, Arrays.copyOfRange(data, 2, 20));
+        assertEquals(PasswordWalletApplet.TAG_MODE, data[20]);
+        assertEquals(PasswordWalletApplet.TAG_ENTRY_COUNT, data[23]);
+        assertEquals(PasswordWalletApplet.TAG_FREE_ENTRIES, data[27]);
+        assertEquals(PasswordWalletApplet.TAG_GENERATION, data[31]);
+        assertEquals("data length", 37, data.length);
+
+        //only the card and PIN state and capabilities before PIN verification
+        assertEquals(0x9000, transmitCommand(new CommandAPDU(AIDUtil.select(TestSuite.APPLET_AID))).getSW());
+        response = transmitCommand(c);
+        assertEquals(0x9000, response.getSW());
+        assertEquals("data length", 20, response.getData().length);
+        assertEquals(0x00, response.getData()[7]);
+
+        c = new CommandAPDU(TestUtils.buildApdu(new byte[]{(byte) 0x90, (byte) 0x52, 0x00, 0x00}, new byte[]{0x00}));
+        assertEquals(ISO7816.SW_WRONG_LENGTH, transmitCommand(c).getSW());
+    }
 }
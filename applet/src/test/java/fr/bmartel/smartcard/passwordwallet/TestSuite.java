@@ -40,7 +40,7 @@ import static org.junit.Assert.fail;
 })
 public class TestSuite {
 
-    private final static String APPLET_AID = "D2760001180002FF49502589C0019B01";
+    final static String APPLET_AID = "D2760001180002FF49502589C0019B01";
 
     private static CardSimulator mSimulator;
 
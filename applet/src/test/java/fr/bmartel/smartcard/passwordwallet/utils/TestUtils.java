@@ -1,10 +1,16 @@
 package fr.bmartel.smartcard.passwordwallet.utils;
 
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.base.TransientMemory;
 import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
@@ -12,9 +18,12 @@ import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import fr.bmartel.smartcard.passwordwallet.JavaCardTest;
+import fr.bmartel.smartcard.passwordwallet.PasswordWalletApplet;
+import javacard.framework.AID;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestUtils {
 
@@ -93,6 +102,70 @@ public class TestUtils {
         return null;
     }
 
+    /**
+     * Get the number of transient arrays (clear on deselect) allocated in the simulator.
+     *
+     * @param simulator card simulator
+     * @return number of transient arrays
+     * @throws IllegalAccessException
+     */
+    public static int getTransientArrayCount(CardSimulator simulator) throws IllegalAccessException {
+        SimulatorRuntime runtime = (SimulatorRuntime) getField(Simulator.class, "runtime").get(simulator);
+        return ((List) getField(TransientMemory.class, "clearOnDeselect").get(runtime.getTransientMemory())).size();
+    }
+
+    /**
+     * Read a field of the applet instance installed in the simulator.
+     *
+     * @param simulator card simulator
+     * @param aid       applet AID
+     * @param name      field name
+     * @return field value
+     */
+    public static Object getAppletField(CardSimulator simulator, String aid, String name) throws Exception {
+        Object applet = getApplet(simulator, aid);
+        return getField(applet.getClass(), name).get(applet);
+    }
+
+    /**
+     * Set a field of the applet instance installed in the simulator.
+     *
+     * @param simulator card simulator
+     * @param aid       applet AID
+     * @param name      field name
+     * @param value     new field value
+     */
+    public static void setAppletField(CardSimulator simulator, String aid, String name, Object value) throws Exception {
+        Object applet = getApplet(simulator, aid);
+        getField(applet.getClass(), name).set(applet, value);
+    }
+
+    /**
+     * Get the padding mode the applet should report. In the simulator it is read from the applet instance, on a real
+     * card the reported mode is only checked to be a known one.
+     *
+     * @param simulator card simulator or null for a real card
+     * @param aid       applet AID
+     * @param reported  padding mode reported by the card
+     * @return expected padding mode
+     */
+    public static byte getPaddingMode(CardSimulator simulator, String aid, byte reported) throws Exception {
+        if (simulator == null) {
+            assertTrue("known padding mode", reported == PasswordWalletApplet.PADDING_SOFTWARE ||
+                    reported == PasswordWalletApplet.PADDING_NATIVE);
+            return reported;
+        }
+        return (Boolean) getAppletField(simulator, aid, "nativePadding") ?
+                PasswordWalletApplet.PADDING_NATIVE : PasswordWalletApplet.PADDING_SOFTWARE;
+    }
+
+    private static Object getApplet(CardSimulator simulator, String aid) throws Exception {
+        SimulatorRuntime runtime = (SimulatorRuntime) getField(Simulator.class, "runtime").get(simulator);
+        Method getApplet = SimulatorRuntime.class.getDeclaredMethod("getApplet", AID.class);
+        getApplet.setAccessible(true);
+        return getApplet.invoke(runtime, AIDUtil.create(aid));
+    }
+
     public static void sendCmdBatch(JavaCardTest card, byte[] cmd, byte[] data, int expectedSw, byte[] expectedResponse) throws CardException {
         CommandAPDU commandAPDU = new CommandAPDU(TestUtils.buildApdu(cmd, data));
         ResponseAPDU response = card.transmitCommand(commandAPDU);